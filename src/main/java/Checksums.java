@@ -0,0 +1,69 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Content checksums shared by the tasks: message digests of files and their
+ * hexadecimal representation.
+ */
+class Checksums {
+
+	private Checksums() {
+	}
+
+	/**
+	 * Returns a new message digest for the given algorithm (e.g. SHA-256).
+	 */
+	public static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new BuildException(algorithm + " digest not available: "
+					+ nsae.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the hexadecimal digest of the content of a file, computed with
+	 * the given algorithm.
+	 */
+	public static String digest(File f, String algorithm) throws IOException {
+		MessageDigest md = newDigest(algorithm);
+		InputStream is = new FileInputStream(f);
+		try {
+			byte[] buffer = new byte[65536];
+			for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+				md.update(buffer, 0, n);
+			}
+		} finally {
+			is.close();
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Returns the hexadecimal representation of a digest.
+	 */
+	public static String toHex(byte[] digest) {
+		StringBuilder sb = new StringBuilder(2 * digest.length);
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Write generated files only when their content changes. The new content is
+ * compared with the file on disk and, if it differs, written to a temporary
+ * file in the same directory, flushed to disk and renamed over the target.
+ * Readers therefore see either the old or the new file, never a partial one,
+ * and unchanged files keep their modification time.
+ */
+class FileUpdater {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private FileUpdater() {
+	}
+
+	/**
+	 * Write the content to the file if it differs from the current content.
+	 *
+	 * @return true if the file has been written
+	 */
+	public static boolean update(File file, byte[] content) throws IOException {
+		return update(file, content, null);
+	}
+
+	/**
+	 * Write the content to the file if it differs from the current content.
+	 * The parts of the files matching the given pattern (e.g. a generation
+	 * date) are ignored in the comparison; the pattern may be null.
+	 *
+	 * @return true if the file has been written
+	 */
+	public static boolean update(File file, byte[] content, Pattern ignored)
+			throws IOException {
+
+		if (file.isFile()
+				&& ((ignored != null) || (file.length() == content.length))) {
+			byte[] current = Files.readAllBytes(file.toPath());
+			boolean same;
+			if (ignored == null) {
+				same = Arrays.equals(current, content);
+			} else {
+				String a = ignored.matcher(new String(current, UTF8))
+						.replaceAll("");
+				String b = ignored.matcher(new String(content, UTF8))
+						.replaceAll("");
+				same = a.equals(b);
+			}
+			if (same) {
+				return false;
+			}
+		}
+
+		write(file, content);
+		return true;
+	}
+
+	/**
+	 * Atomically replace the file with the given content.
+	 */
+	public static void write(File file, byte[] content) throws IOException {
+
+		File tmp = createTempFile(file);
+		try {
+			FileOutputStream os = new FileOutputStream(tmp);
+			try {
+				os.write(content);
+				os.getFD().sync();
+			} finally {
+				os.close();
+			}
+			commit(tmp, file);
+		} finally {
+			if (tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Replace the file with the given temporary file if their contents
+	 * differ. The temporary file is deleted otherwise. The temporary file
+	 * doesn't need to be synced: it is flushed to disk here, only if it
+	 * replaces the file.
+	 *
+	 * @return true if the file has been replaced
+	 */
+	public static boolean replace(File tmp, File file) throws IOException {
+		if (file.isFile() && (file.length() == tmp.length())
+				&& sameContent(tmp, file)) {
+			tmp.delete();
+			return false;
+		}
+		FileChannel channel = FileChannel.open(tmp.toPath(),
+				StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		commit(tmp, file);
+		return true;
+	}
+
+	/*
+	 * Compare two files of the same length block by block.
+	 */
+	private static boolean sameContent(File a, File b) throws IOException {
+		InputStream isa = new FileInputStream(a);
+		try {
+			InputStream isb = new FileInputStream(b);
+			try {
+				byte[] ba = new byte[65536];
+				byte[] bb = new byte[65536];
+				for (int n = readFully(isa, ba); n > 0; n = readFully(isa, ba)) {
+					if ((readFully(isb, bb) != n)
+							|| !Arrays.equals(ba, bb)) {
+						return false;
+					}
+				}
+				return readFully(isb, bb) == 0;
+			} finally {
+				isb.close();
+			}
+		} finally {
+			isa.close();
+		}
+	}
+
+	/*
+	 * Fill the buffer from the stream, zeroing the unused part at the end of
+	 * the stream so that buffers can be compared as a whole.
+	 */
+	private static int readFully(InputStream is, byte[] buffer)
+			throws IOException {
+		int n = 0;
+		while (n < buffer.length) {
+			int r = is.read(buffer, n, buffer.length - n);
+			if (r < 0) {
+				Arrays.fill(buffer, n, buffer.length, (byte) 0);
+				break;
+			}
+			n += r;
+		}
+		return n;
+	}
+
+	/**
+	 * Create an empty temporary file next to the given file. The file is
+	 * created with the default permissions, like the target would be.
+	 */
+	public static File createTempFile(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		for (int i = 0;; i++) {
+			File tmp = new File(dir, "." + file.getName() + "."
+					+ Long.toHexString(System.nanoTime()) + i + ".tmp");
+			if (tmp.createNewFile()) {
+				return tmp;
+			}
+		}
+	}
+
+	/**
+	 * Rename the temporary file over the target. The permissions of an
+	 * existing target are kept.
+	 */
+	public static void commit(File tmp, File file) throws IOException {
+		if (file.exists()) {
+			try {
+				Files.setPosixFilePermissions(tmp.toPath(),
+						Files.getPosixFilePermissions(file.toPath()));
+			} catch (UnsupportedOperationException consumed) {
+			}
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException amnse) {
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+}
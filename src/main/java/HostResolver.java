@@ -0,0 +1,303 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Resolve host names concurrently with a bounded pool of threads and a
+ * timeout per lookup. The addresses can be kept in a cache file with a
+ * time-to-live, so that repeated runs on the same hosts don't query the DNS.
+ * Failed lookups are not cached.
+ */
+class HostResolver {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private static final String HEADER = "# NotifyClientTask address cache";
+
+	/* The cache file (may be null). */
+	private final File file;
+
+	/* Time-to-live of the cached addresses in milliseconds. */
+	private final long ttl;
+
+	/* The number of resolver threads. */
+	private final int threads;
+
+	/* The timeout of each lookup in milliseconds. */
+	private final long timeout;
+
+	/* The cached addresses and their expiry time, indexed by host. */
+	private final Map<String, Entry> cache = new HashMap<String, Entry>();
+
+	/* The hosts which could not be resolved, with the reason. */
+	private final Map<String, String> unresolved = new TreeMap<String, String>();
+
+	/**
+	 * Create a resolver using the given cache file, which may be null.
+	 */
+	public HostResolver(File file, long ttl, int threads, long timeout) {
+		this.file = file;
+		this.ttl = ttl;
+		this.threads = Math.max(threads, 1);
+		this.timeout = timeout;
+		if ((file != null) && file.exists()) {
+			read();
+		}
+	}
+
+	/**
+	 * Resolve the given hosts. The hosts which can't be resolved are missing
+	 * from the result and are listed by getUnresolved().
+	 *
+	 * @return the address of each resolved host
+	 */
+	public Map<String, InetAddress> resolve(Collection<String> hosts) {
+
+		Map<String, InetAddress> addresses = new HashMap<String, InetAddress>();
+		long now = System.currentTimeMillis();
+
+		TreeSet<String> missing = new TreeSet<String>();
+		for (String host : hosts) {
+			Entry entry = cache.get(host);
+			if ((entry != null) && (entry.expiry > now)) {
+				addresses.put(host, entry.address);
+			} else {
+				missing.add(host);
+			}
+		}
+		if (missing.size() == 0) {
+			return addresses;
+		}
+
+		// Lookups can't be interrupted: a lookup which times out keeps its
+		// thread, so each lookup gets its own daemon thread and at most
+		// "threads" lookups which have not timed out run at the same time. The
+		// timeout of a lookup is counted from the time it actually started.
+		ExecutorService executor = Executors
+				.newCachedThreadPool(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "NotifyClientTask resolver");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		CompletionService<InetAddress> completion = new ExecutorCompletionService<InetAddress>(
+				executor);
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		try {
+			Map<Future<InetAddress>, Lookup> running = new LinkedHashMap<Future<InetAddress>, Lookup>();
+			while ((missing.size() > 0) || (running.size() > 0)) {
+
+				while ((running.size() < threads) && (missing.size() > 0)) {
+					Lookup lookup = new Lookup(missing.pollFirst());
+					running.put(completion.submit(lookup), lookup);
+				}
+
+				// Wait for a lookup to complete or for the first deadline of
+				// the started lookups.
+				long wait = timeoutNanos;
+				long clock = System.nanoTime();
+				for (Lookup lookup : running.values()) {
+					long started = lookup.started;
+					if (started != 0) {
+						wait = Math.min(wait, started + timeoutNanos - clock);
+					}
+				}
+				Future<InetAddress> done;
+				try {
+					done = completion.poll(Math.max(wait, 0),
+							TimeUnit.NANOSECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new BuildException("Interrupted while resolving hosts");
+				}
+
+				// Lookups cancelled after a timeout are also reported as
+				// completed: they are no longer running and are skipped.
+				Lookup lookup = (done != null) ? running.remove(done) : null;
+				if (lookup != null) {
+					try {
+						InetAddress address = done.get();
+						addresses.put(lookup.host, address);
+						Entry entry = new Entry();
+						entry.address = address;
+						entry.expiry = now + ttl;
+						cache.put(lookup.host, entry);
+					} catch (ExecutionException ee) {
+						unresolved.put(lookup.host, "unknown host");
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw new BuildException("Interrupted while resolving "
+								+ lookup.host);
+					}
+				}
+
+				// Give up on the lookups which have run for the timeout. Those
+				// which have not started yet are never timed out.
+				clock = System.nanoTime();
+				Iterator<Map.Entry<Future<InetAddress>, Lookup>> i = running
+						.entrySet().iterator();
+				while (i.hasNext()) {
+					Map.Entry<Future<InetAddress>, Lookup> e = i.next();
+					long started = e.getValue().started;
+					if ((started != 0) && (clock - started >= timeoutNanos)
+							&& !e.getKey().isDone()) {
+						e.getKey().cancel(true);
+						unresolved.put(e.getValue().host, "timeout");
+						i.remove();
+					}
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return addresses;
+	}
+
+	/**
+	 * Returns the hosts which could not be resolved, with the reason.
+	 */
+	public Map<String, String> getUnresolved() {
+		return unresolved;
+	}
+
+	/**
+	 * Write the addresses which have not expired to the cache file.
+	 */
+	public void save() {
+
+		if (file == null) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		StringBuilder contents = new StringBuilder(HEADER + "\n");
+		for (Map.Entry<String, Entry> e : new TreeMap<String, Entry>(cache)
+				.entrySet()) {
+			Entry entry = e.getValue();
+			if (entry.expiry > now) {
+				contents.append(e.getKey()).append('\t')
+						.append(entry.address.getHostAddress()).append('\t')
+						.append(entry.expiry).append('\n');
+			}
+		}
+		try {
+			FileUpdater.update(file, contents.toString().getBytes(UTF8));
+		} catch (IOException ioe) {
+			throw new BuildException("Error writing address cache "
+					+ file.getAbsolutePath() + ": (" + ioe.toString() + ")");
+		}
+	}
+
+	/*
+	 * Read the cache file. Malformed lines are skipped.
+	 */
+	private void read() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), UTF8));
+			for (String line = reader.readLine(); line != null; line = reader
+					.readLine()) {
+				String[] fields = line.split("\t", -1);
+				if (line.startsWith("#") || (fields.length != 3)) {
+					continue;
+				}
+				try {
+					// Only numeric addresses are stored: this doesn't do a
+					// lookup.
+					Entry entry = new Entry();
+					entry.address = InetAddress.getByAddress(fields[0],
+							InetAddress.getByName(fields[1]).getAddress());
+					entry.expiry = Long.parseLong(fields[2]);
+					cache.put(fields[0], entry);
+				} catch (NumberFormatException consumed) {
+				} catch (UnknownHostException consumed) {
+				}
+			}
+		} catch (IOException consumed) {
+			cache.clear();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException consumed) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the address of a host. This is where the lookups are done and
+	 * may be overridden to use another resolver.
+	 */
+	InetAddress lookup(String host) throws UnknownHostException {
+		return InetAddress.getByName(host);
+	}
+
+	/**
+	 * The lookup of one host, recording the time it started.
+	 */
+	private class Lookup implements Callable<InetAddress> {
+
+		final String host;
+
+		/* The System.nanoTime() at which the lookup started (0 if not yet). */
+		volatile long started = 0;
+
+		Lookup(String host) {
+			this.host = host;
+		}
+
+		public InetAddress call() throws UnknownHostException {
+			long now = System.nanoTime();
+			started = (now != 0) ? now : 1;
+			return lookup(host);
+		}
+
+	}
+
+	/**
+	 * A cached address.
+	 */
+	static class Entry {
+
+		InetAddress address;
+
+		long expiry;
+
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Extract the RPM package references from an HTML directory listing without
+ * loading the whole document into memory. This returns the same values, in
+ * the same order, as successive find() calls with the pattern
+ *
+ * <pre>
+ * &lt;a\s+.*?href=&quot;(.*?\.rpm)&quot;\s*&gt;   (CASE_INSENSITIVE | MULTILINE)
+ * </pre>
+ *
+ * As '.' doesn't match line terminators, an anchor can only span several
+ * lines through whitespace. The scanner therefore only keeps the characters
+ * from the start of the current candidate anchor: memory use is bounded by
+ * the length of the longest line rather than the size of the document.
+ */
+class HrefScanner {
+
+	/* The characters which must follow the href value. */
+	private static final String HREF = "href=\"";
+
+	/* The characters ending the href value. */
+	private static final String RPM = ".rpm\"";
+
+	/* Initial (and minimum) size of the read buffer. */
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Reader reader;
+
+	/* The buffer holding the characters of the current window. */
+	private char[] buffer = new char[BUFFER_SIZE];
+
+	/* Offset in the document of the first character of the buffer. */
+	private long base = 0;
+
+	/* Number of valid characters in the buffer. */
+	private int count = 0;
+
+	/* True once the reader has returned end-of-file. */
+	private boolean eof = false;
+
+	/* Offset in the document where the search will resume. */
+	private long position = 0;
+
+	/* Offset in the document of the end of the last match. */
+	private long matchEnd = 0;
+
+	public HrefScanner(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Return the next package reference (the value of the href attribute) or
+	 * null if the end of the document has been reached.
+	 */
+	public String next() throws IOException {
+
+		while (available(position + 1)) {
+
+			// Characters before the current position are no longer needed.
+			discard(position);
+
+			if ((charAt(position) == '<')
+					&& ((charAt(position + 1) | 0x20) == 'a')) {
+				String href = matchAnchor(position);
+				if (href != null) {
+					position = matchEnd;
+					return href;
+				}
+			}
+			position++;
+		}
+
+		return null;
+	}
+
+	/*
+	 * Try to match an anchor starting at the given offset ('<a'). This mimics
+	 * the backtracking done by the regular expression: the first 'href="'
+	 * after the leading whitespace is tried first with the shortest value
+	 * ending with '.rpm"'; longer values and then later 'href="' are tried
+	 * until the value is followed by optional whitespace and '>'.
+	 */
+	private String matchAnchor(long start) throws IOException {
+
+		// At least one whitespace character after '<a'.
+		long p = start + 2;
+		if (!available(p) || !isSpace(charAt(p))) {
+			return null;
+		}
+		while (available(p) && isSpace(charAt(p))) {
+			p++;
+		}
+
+		// The 'href="' and the value must be on the same line.
+		for (long h = p; available(h) && !isLineTerminator(charAt(h)); h++) {
+			if (!regionMatches(h, HREF)) {
+				continue;
+			}
+			long valueStart = h + HREF.length();
+			for (long r = valueStart; available(r)
+					&& !isLineTerminator(charAt(r)); r++) {
+				if (!regionMatches(r, RPM)) {
+					continue;
+				}
+				long e = r + RPM.length();
+				while (available(e) && isSpace(charAt(e))) {
+					e++;
+				}
+				if (available(e) && (charAt(e) == '>')) {
+					matchEnd = e + 1;
+					return substring(valueStart, r + 4);
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/*
+	 * Case-insensitive (ASCII) comparison of the document with the given
+	 * lowercase string.
+	 */
+	private boolean regionMatches(long offset, String s) throws IOException {
+		if (!available(offset + s.length() - 1)) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = charAt(offset + i);
+			char expected = s.charAt(i);
+			if ((c != expected)
+					&& !((expected >= 'a') && (expected <= 'z') && ((c | 0x20) == expected))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String substring(long from, long to) {
+		return new String(buffer, (int) (from - base), (int) (to - from));
+	}
+
+	/*
+	 * The character at the given document offset. The caller must have
+	 * checked that it is available.
+	 */
+	private char charAt(long offset) {
+		return buffer[(int) (offset - base)];
+	}
+
+	/*
+	 * Make sure that the character at the given document offset is in the
+	 * buffer, reading more data if necessary. Returns false if the document
+	 * is shorter.
+	 */
+	private boolean available(long offset) throws IOException {
+		while (offset >= base + count) {
+			if (eof) {
+				return false;
+			}
+			if (count == buffer.length) {
+				char[] larger = new char[2 * buffer.length];
+				System.arraycopy(buffer, 0, larger, 0, count);
+				buffer = larger;
+			}
+			int n = reader.read(buffer, count, buffer.length - count);
+			if (n < 0) {
+				eof = true;
+			} else {
+				count += n;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Drop the characters before the given document offset once they fill
+	 * half of the buffer.
+	 */
+	private void discard(long offset) {
+		int n = (int) (offset - base);
+		if (n > buffer.length / 2) {
+			System.arraycopy(buffer, n, buffer, 0, count - n);
+			count -= n;
+			base = offset;
+		}
+	}
+
+	/* Whitespace as defined by the regular expression \s. */
+	private static boolean isSpace(char c) {
+		return (c == ' ') || (c == '\t') || (c == '\n') || (c == '\u000B')
+				|| (c == '\f') || (c == '\r');
+	}
+
+	/* Line terminators as used by the regular expression '.'. */
+	private static boolean isLineTerminator(char c) {
+		return (c == '\n') || (c == '\r') || (c == '\u0085')
+				|| (c == '\u2028') || (c == '\u2029');
+	}
+
+}
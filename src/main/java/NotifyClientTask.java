@@ -6,15 +6,33 @@ ${author-info}
 
 package org.quattor.ant;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
@@ -44,50 +62,202 @@ public class NotifyClientTask extends Task {
      */
     private String domain = "";
 
-    /* The hash to hold the file/modification time map. */
-    private HashMap<File, Long> filetimes = new HashMap<File, Long>(100);
+    /*
+     * The maximum number of packets sent per second. The default (0) sends
+     * the packets as fast as possible.
+     */
+    private int rate = 0;
+
+    /*
+     * The number of packets which can be sent back-to-back when the rate is
+     * limited. The default is 1.
+     */
+    private int burst = 1;
+
+    /*
+     * Time to wait for the socket to accept a packet before giving up on it,
+     * in milliseconds.
+     */
+    private static final long SEND_TIMEOUT = 1000;
+
+    /*
+     * The number of threads used to resolve the host names. The default is 8.
+     */
+    private int resolverThreads = 8;
+
+    /*
+     * The timeout for resolving a host name, in milliseconds. The default is
+     * 5 seconds.
+     */
+    private long resolveTimeout = 5000;
+
+    /*
+     * The file caching the host addresses. By default, addresses are not
+     * cached.
+     */
+    private File addressCache = null;
+
+    /*
+     * The time-to-live of the cached addresses, in seconds. The default is one
+     * hour.
+     */
+    private long addressCacheTtl = 3600;
+
+    /*
+     * The file holding the time of the last notification sent to each host.
+     * By default, all hosts are notified.
+     */
+    private File stateFile = null;
+
+    /*
+     * Notify all hosts, even if they were notified of their current profile.
+     */
+    private boolean force = false;
+
+    /*
+     * The number of hosts notified in each wave. The default (0) notifies all
+     * hosts in a single wave.
+     */
+    private int waveSize = 0;
 
-    static private final Pattern PROFILE_REGEX = Pattern
-            .compile("^(?!profiles-info)(.+?)(?:\\.\\w+)(?:\\.gz|\\.GZ|\\.bz2|\\.BZ2)?$");
+    /*
+     * The time between the start of two waves, in milliseconds.
+     */
+    private long waveInterval = 0;
+
+    /*
+     * The target rate of profile fetches triggered by the notifications, in
+     * fetches per second. The default (0) doesn't limit the fetch rate.
+     */
+    private int fetchRate = 0;
+
+    /*
+     * The maximum delay added to the notification of each host within its
+     * wave, in milliseconds. The delay is derived from the host name.
+     */
+    private long jitter = 0;
+
+    /*
+     * The number of threads used to read the modification times of the
+     * profiles. The default is 1.
+     */
+    private int threads = 1;
+
+    /* The base directories of the filesets. */
+    private LinkedList<File> basedirs = new LinkedList<File>();
+
+    /* The files included in each fileset, relative to its base directory. */
+    private LinkedList<String[]> filenames = new LinkedList<String[]>();
+
+    /* The compression suffixes allowed after the profile extension. */
+    static private final String[] COMPRESSION_SUFFIXES = { ".gz", ".GZ",
+            ".bz2", ".BZ2" };
 
     @Override
     public void execute() throws BuildException {
 
-        LinkedList<DatagramPacket> packets = new LinkedList<DatagramPacket>();
+        // Waves must be spaced by an interval or a fetch rate.
+        if ((waveSize < 0) || (waveInterval < 0) || (fetchRate < 0) || (jitter < 0)) {
+            throw new BuildException("waveSize, waveInterval, fetchRate and jitter must not be negative");
+        }
+        if ((waveSize > 0) && (waveInterval == 0) && (fetchRate == 0)) {
+            throw new BuildException("waveSize requires waveInterval or fetchRate");
+        }
 
-        Map<String, Long> packetInfo = new HashMap<String, Long>();
-        for (Map.Entry<File, Long> file : filetimes.entrySet()) {
-            Long time = file.getValue();
-            String host = getFullHostname(file.getKey());
+        LinkedList<DatagramPacket> packets = new LinkedList<DatagramPacket>();
+        Map<DatagramPacket, String> packetHosts = new IdentityHashMap<DatagramPacket, String>();
+
+        // Get the most recent profile modification time for each host. The
+        // host name is derived from the file name before reading the time, so
+        // files which aren't profiles are never looked at.
+        HostTimes hostTimes = new HostTimes();
+        Iterator<File> dirs = basedirs.iterator();
+        for (String[] names : filenames) {
+            File basedir = dirs.next();
+
+            String[] hosts = new String[names.length];
+            for (int i = 0; i < names.length; i++) {
+                hosts[i] = getFullHostname(names[i]);
+            }
 
-            if (host != null) {
-                Long oldTime = packetInfo.get(host);
-                if (oldTime == null) {
-                    oldTime = Long.valueOf(0L);
+            long[] times = readTimes(basedir, names, hosts);
+            for (int i = 0; i < names.length; i++) {
+                if (hosts[i] != null) {
+                    hostTimes.putMax(hosts[i], times[i]);
                 }
-
-                if (time > oldTime) {
-                    packetInfo.put(host, time);
+            }
+        }
+        Map<String, Long> packetInfo = hostTimes.toMap();
+
+        // Skip the hosts already notified of their current profile.
+        Map<String, Long> state = null;
+        if (stateFile != null) {
+            state = readState();
+            if (!force) {
+                int skipped = 0;
+                for (Iterator<Map.Entry<String, Long>> i = packetInfo
+                        .entrySet().iterator(); i.hasNext();) {
+                    Map.Entry<String, Long> entry = i.next();
+                    Long notified = state.get(entry.getKey());
+                    if ((notified != null)
+                            && (entry.getValue().longValue() <= notified
+                                    .longValue())) {
+                        i.remove();
+                        skipped++;
+                    }
                 }
+                System.out.println("Skipping " + skipped
+                        + " hosts already notified");
             }
-
         }
 
-        for (Map.Entry<String, Long> entry : packetInfo.entrySet()) {
+        // Resolve all of the hosts first.
+        HostResolver resolver = new HostResolver(addressCache,
+                addressCacheTtl * 1000, resolverThreads, resolveTimeout);
+        Map<String, InetAddress> addresses = resolver.resolve(packetInfo
+                .keySet());
+        resolver.save();
+
+        // Hosts are taken in name order so that the waves are reproducible.
+        for (Map.Entry<String, Long> entry : new TreeMap<String, Long>(
+                packetInfo).entrySet()) {
             String host = entry.getKey();
             Long time = entry.getValue();
+            InetAddress ip = addresses.get(host);
 
-            try {
-                packets.add(constructPacket(host, msg, time));
-            } catch (java.io.UnsupportedEncodingException uee) {
-                System.err.println("Unsupported uncoding US-ASCII!");
-            } catch (java.net.UnknownHostException uhe) {
-                System.err.println("Unknown host: " + host);
+            if (ip != null) {
+                try {
+                    DatagramPacket packet = constructPacket(ip, msg, time);
+                    packets.add(packet);
+                    packetHosts.put(packet, host);
+                } catch (java.io.UnsupportedEncodingException uee) {
+                    System.err.println("Unsupported uncoding US-ASCII!");
+                }
             }
         }
 
         // Notify the clients.
-        notify(packets);
+        long[] schedule = scheduleWaves(packets, packetHosts);
+        LinkedList<DatagramPacket> sent = notify(packets, schedule);
+
+        // Record the notifications actually sent.
+        if (state != null) {
+            for (DatagramPacket packet : sent) {
+                String host = packetHosts.get(packet);
+                state.put(host, packetInfo.get(host));
+            }
+            writeState(state);
+        }
+
+        Map<String, String> unresolved = resolver.getUnresolved();
+        if (unresolved.size() > 0) {
+            System.err.println("Could not resolve " + unresolved.size()
+                    + " hosts:");
+            for (Map.Entry<String, String> host : unresolved.entrySet()) {
+                System.err.println("    " + host.getKey() + " ("
+                        + host.getValue() + ")");
+            }
+        }
     }
 
     /*
@@ -122,6 +292,144 @@ public class NotifyClientTask extends Task {
         this.domain = domain;
     }
 
+    /*
+     * Set the maximum number of packets sent per second. The default (0) does
+     * not limit the rate.
+     *
+     * @param int maximum number of packets per second
+     */
+    public void setRate(int rate) {
+        if (rate < 0) {
+            throw new BuildException("rate must be a positive number");
+        }
+        this.rate = rate;
+    }
+
+    /*
+     * Set the number of packets which can be sent back-to-back when the rate
+     * is limited. The default is 1, which spreads the packets evenly.
+     *
+     * @param int burst size in packets
+     */
+    public void setBurst(int burst) {
+        if (burst < 1) {
+            throw new BuildException("burst must be at least 1");
+        }
+        this.burst = burst;
+    }
+
+    /*
+     * Set the number of threads used to resolve the host names. The default
+     * is 8.
+     *
+     * @param int number of resolver threads
+     */
+    public void setResolverThreads(int resolverThreads) {
+        this.resolverThreads = (resolverThreads > 0) ? resolverThreads : 1;
+    }
+
+    /*
+     * Set the timeout for resolving a host name. Hosts which can't be resolved
+     * in time are not notified. The default is 5000 ms.
+     *
+     * @param long timeout in milliseconds
+     */
+    public void setResolveTimeout(long resolveTimeout) {
+        this.resolveTimeout = resolveTimeout;
+    }
+
+    /*
+     * Set the file used to cache the host addresses between runs. By default,
+     * addresses are not cached.
+     *
+     * @param File address cache
+     */
+    public void setAddressCache(File addressCache) {
+        this.addressCache = addressCache;
+    }
+
+    /*
+     * Set the time-to-live of the cached addresses. The default is 3600 s.
+     *
+     * @param long time-to-live in seconds
+     */
+    public void setAddressCacheTtl(long addressCacheTtl) {
+        this.addressCacheTtl = addressCacheTtl;
+    }
+
+    /*
+     * Set the file recording the last notification sent to each host. Hosts
+     * whose profile has not changed since they were last notified are then
+     * skipped. By default, all hosts are notified.
+     *
+     * @param File state file
+     */
+    public void setStateFile(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /*
+     * Setting this flag notifies all hosts, even those already notified of
+     * their current profile. The state file is still updated.
+     *
+     * @param boolean flag to notify all hosts
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /*
+     * Set the number of hosts notified in each wave. The default (0) notifies
+     * all hosts at once. A wave size requires a wave interval or a fetch
+     * rate.
+     *
+     * @param int number of hosts per wave
+     */
+    public void setWaveSize(int waveSize) {
+        this.waveSize = waveSize;
+    }
+
+    /*
+     * Set the time between the start of two waves.
+     *
+     * @param long wave interval in milliseconds
+     */
+    public void setWaveInterval(long waveInterval) {
+        this.waveInterval = waveInterval;
+    }
+
+    /*
+     * Set the target rate of profile fetches triggered by the notifications.
+     * The wave interval is lengthened as needed to stay under this rate.
+     *
+     * @param int fetches per second
+     */
+    public void setFetchRate(int fetchRate) {
+        this.fetchRate = fetchRate;
+    }
+
+    /*
+     * Set the maximum delay added to the notification of each host within its
+     * wave. The delay is derived from the host name, so a host is always
+     * notified at the same point of its wave. It is limited to the wave
+     * interval so that a host never moves to a later wave.
+     *
+     * @param long maximum delay in milliseconds
+     */
+    public void setJitter(long jitter) {
+        this.jitter = jitter;
+    }
+
+    /*
+     * Set the number of threads used to read the modification times of the
+     * profiles. The default is 1.
+     *
+     * @param int number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = (threads > 0) ? threads : 1;
+    }
+
     /*
      * Support nested fileset elements. This is called by ant only after all of
      * the children of the fileset have been processed. Collect all of the
@@ -135,8 +443,8 @@ public class NotifyClientTask extends Task {
     }
 
     /*
-     * Collect all of the files listed within enclosed fileSet tags, get the
-     * modification times, and add each pair to the given filetimes hash.
+     * Collect all of the files listed within enclosed fileSet tags. The
+     * modification times are only read when the task is executed.
      *
      * @param fs FileSet from which to get the file names
      */
@@ -146,62 +454,155 @@ public class NotifyClientTask extends Task {
         DirectoryScanner ds = fs.getDirectoryScanner(getProject());
 
         // The base directory for all files.
-        File basedir = ds.getBasedir();
+        basedirs.add(ds.getBasedir());
+        filenames.add(ds.getIncludedFiles());
+    }
+
+    /*
+     * Read the modification times in SECONDS since the epoch (Java by default
+     * uses milliseconds since the epoch) of the files for which a host name
+     * was found. The files are split between 'threads' threads.
+     *
+     * @param File base directory @param String[] file names relative to the
+     * base directory @param String[] host names (null for files to skip)
+     *
+     * @return long[] modification times (0 for skipped files)
+     */
+    private long[] readTimes(final File basedir, final String[] names,
+            final String[] hosts) {
+
+        final long[] times = new long[names.length];
+
+        int chunks = Math.min(threads, names.length / 1000 + 1);
+        if (chunks <= 1) {
+            readTimes(basedir, names, hosts, times, 0, names.length);
+            return times;
+        }
 
-        // Loop over each file, creating a File object, and collecting
-        // the modification time in SECONDS since the epoch. (Java by
-        // default uses milliseconds since the epoch.)
-        // for (String f : ds.getIncludedFiles()) {
-        String[] temp = ds.getIncludedFiles();
-        for (int i = 0; i < temp.length; i++) {
-            String f = temp[i];
+        ExecutorService executor = Executors.newFixedThreadPool(chunks);
+        try {
+            LinkedList<Future<?>> results = new LinkedList<Future<?>>();
+            int chunk = (names.length + chunks - 1) / chunks;
+            for (int start = 0; start < names.length; start += chunk) {
+                final int from = start;
+                final int to = Math.min(start + chunk, names.length);
+                results.add(executor.submit(new Runnable() {
+                    public void run() {
+                        readTimes(basedir, names, hosts, times, from, to);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException ee) {
+            throw new BuildException("Error reading profile times: "
+                    + ee.getCause().toString());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while reading profile times");
+        } finally {
+            executor.shutdownNow();
+        }
+        return times;
+    }
 
-            File file = new File(basedir, f);
-            Long time = Long.valueOf(file.lastModified() / 1000);
-            filetimes.put(file, time);
+    private static void readTimes(File basedir, String[] names,
+            String[] hosts, long[] times, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (hosts[i] != null) {
+                times[i] = new File(basedir, names[i]).lastModified() / 1000;
+            }
         }
     }
 
     /*
-     * Read the given XML machine profile and extract the full hostname from the
-     * given host and domain.
+     * Extract the full hostname from the name of a machine profile: the file
+     * name without its extension and optional compression suffix (e.g.
+     * node.example.org.json.gz), to which the default domain is appended for
+     * unqualified names. Files whose name starts with 'profiles-info' are not
+     * profiles.
+     *
+     * This is the same as the first group of the regular expression
+     * ^(?!profiles-info)(.+?)(?:\.\w+)(?:\.gz|\.GZ|\.bz2|\.BZ2)?$
      *
-     * @param file a File referencing the machine profile
+     * @param path the path of the machine profile
      *
      * @return a String containing the full hostname or null if an error occurs
      */
-    private String getFullHostname(File file) {
+    String getFullHostname(String path) {
 
-        String fullname = null;
-
-        if (file != null) {
-            String name = file.getName();
-            Matcher m = PROFILE_REGEX.matcher(name);
-            if (m.matches()) {
-                fullname = m.group(1);
+        String name = path.substring(path.lastIndexOf(File.separatorChar) + 1);
+        if (name.startsWith("profiles-info")) {
+            return null;
+        }
 
-                if (fullname.indexOf('.') < 0) {
-                    fullname = fullname + "." + domain;
-                }
+        // The shortest host name wins: try with a compression suffix first.
+        int end = -1;
+        for (String suffix : COMPRESSION_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                end = extensionStart(name, name.length() - suffix.length());
+                break;
+            }
+        }
+        if (end <= 0) {
+            end = extensionStart(name, name.length());
+        }
+        if (end <= 0) {
+            return null;
+        }
+        for (int i = 0; i < end; i++) {
+            if (isLineTerminator(name.charAt(i))) {
+                return null;
             }
+        }
 
+        String fullname = name.substring(0, end);
+        if (fullname.indexOf('.') < 0) {
+            fullname = fullname + "." + domain;
         }
         return fullname;
     }
 
+    /*
+     * Returns the position of the dot starting a non-empty extension of word
+     * characters which ends at the given position, or -1 if there is none.
+     */
+    private static int extensionStart(String name, int end) {
+        int i = end;
+        while ((i > 0) && isWordCharacter(name.charAt(i - 1))) {
+            i--;
+        }
+        if ((i == end) || (i == 0) || (name.charAt(i - 1) != '.')) {
+            return -1;
+        }
+        return i - 1;
+    }
+
+    /* Word character as defined by the regular expression \w. */
+    private static boolean isWordCharacter(char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+                || ((c >= '0') && (c <= '9')) || (c == '_');
+    }
+
+    /* Characters not matched by the regular expression dot. */
+    private static boolean isLineTerminator(char c) {
+        return (c == '\n') || (c == '\r') || (c == '\u0085')
+                || (c == '\u2028') || (c == '\u2029');
+    }
+
     /*
      * Construct a datagram packet from the given information.
      *
-     * @param String full hostname of client @param String message (either 'ccm'
+     * @param InetAddress address of client @param String message (either 'ccm'
      * or 'cdb') @param Long modification time in seconds since the epoch
      */
-    private DatagramPacket constructPacket(String host, String msg, Long time)
-            throws java.io.UnsupportedEncodingException,
-            java.net.UnknownHostException {
+    private DatagramPacket constructPacket(InetAddress ip, String msg,
+            Long time) throws java.io.UnsupportedEncodingException {
 
         DatagramPacket packet = null;
 
-        if (host != null) {
+        if (ip != null) {
 
             // The payload of the message. This is the three
             // character message followed by a null byte and then
@@ -209,9 +610,6 @@ public class NotifyClientTask extends Task {
             byte[] payload = (msg + '\0' + time.toString())
                     .getBytes("US-ASCII");
 
-            // The address.
-            InetAddress ip = InetAddress.getByName(host);
-
             // Create the datagram packet.
             packet = new DatagramPacket(payload, payload.length, ip, port);
 
@@ -220,38 +618,340 @@ public class NotifyClientTask extends Task {
         return packet;
     }
 
+    /*
+     * Split the packets into waves of 'waveSize' packets starting every
+     * 'waveInterval' ms, with a delay of up to 'jitter' ms for each host
+     * within its wave (less than the interval if there are several waves).
+     * If a fetch rate is set, the interval is made long enough for a wave to
+     * stay under that rate (waves of 'fetchRate' hosts every second if no
+     * wave size is set). The packets are reordered by send time.
+     *
+     * @return array of send times in nanoseconds from the start, in the order
+     * of the packets, or null if the packets are not scheduled
+     */
+    private long[] scheduleWaves(LinkedList<DatagramPacket> packets,
+            Map<DatagramPacket, String> packetHosts) {
+
+        int size = waveSize;
+        long interval = waveInterval;
+        if (fetchRate > 0) {
+            if (size == 0) {
+                size = fetchRate;
+            }
+            interval = Math.max(interval, (size * 1000L) / fetchRate);
+        }
+        if ((size == 0) && (jitter == 0)) {
+            return null;
+        }
+
+        // The jitter must keep each host within its wave.
+        long spread = (size > 0) ? Math.min(jitter, interval) : jitter;
+
+        final DatagramPacket[] ordered = packets.toArray(new DatagramPacket[packets.size()]);
+        final long[] offsets = new long[ordered.length];
+        for (int i = 0; i < ordered.length; i++) {
+            long offset = (size > 0) ? (i / size) * interval : 0;
+            if (spread > 0) {
+                int hash = packetHosts.get(ordered[i]).hashCode() & 0x7fffffff;
+                offset += hash % spread;
+            }
+            offsets[i] = TimeUnit.MILLISECONDS.toNanos(offset);
+        }
+
+        // Sort by send time, keeping the wave order for equal times.
+        Integer[] index = new Integer[ordered.length];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(index, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long d = offsets[a.intValue()] - offsets[b.intValue()];
+                return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+            }
+        });
+
+        long[] schedule = new long[index.length];
+        packets.clear();
+        for (int i = 0; i < index.length; i++) {
+            packets.add(ordered[index[i].intValue()]);
+            schedule[i] = offsets[index[i].intValue()];
+        }
+
+        if (size > 0) {
+            System.out.println("Notifying " + ordered.length + " hosts in "
+                    + ((ordered.length + size - 1) / size) + " waves of "
+                    + size + " every " + interval + " ms");
+        }
+        return schedule;
+    }
+
     /*
      * Send the list of packets to notify clients.
      *
-     * @param LinkedList containing DatagramPackets to send
+     * The packets are sent on a non-blocking channel. If a rate is set, they
+     * are paced with a token bucket of 'burst' packets refilled at 'rate'
+     * packets per second: the send time of each packet is scheduled from the
+     * previous one rather than from the clock, so that the packets are spread
+     * evenly whatever the accuracy of the sleeps.
+     *
+     * Packets with a scheduled send time are not sent before that time.
+     *
+     * @param LinkedList containing DatagramPackets to send @param long[]
+     * send times in nanoseconds from the start, or null
+     *
+     * @return LinkedList containing the DatagramPackets actually sent
      */
-    private void notify(LinkedList<DatagramPacket> packets) {
+    private LinkedList<DatagramPacket> notify(LinkedList<DatagramPacket> packets,
+            long[] schedule) {
+
+        LinkedList<DatagramPacket> sentPackets = new LinkedList<DatagramPacket>();
+
+        DatagramChannel channel = null;
+        Selector selector = null;
 
-        DatagramSocket socket = null;
+        int sent = 0;
+        int failed = 0;
+        long start = System.nanoTime();
 
         try {
 
-            // Create a socket for sending datagram (UDP) messages.
-            socket = new DatagramSocket();
+            // Create a channel for sending datagram (UDP) messages.
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_WRITE);
 
+            long interval = (rate > 0) ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+            long tolerance = (burst - 1) * interval;
+            long next = start;
+
+            int n = 0;
             for (DatagramPacket packet : packets) {
+
+                // Wait for the scheduled time.
+                if (schedule != null) {
+                    long wait = start + schedule[n] - System.nanoTime();
+                    while (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        wait = start + schedule[n] - System.nanoTime();
+                    }
+                }
+                n++;
+
+                // Wait for a token.
+                if (interval > 0) {
+                    long now = System.nanoTime();
+                    long wait = next - tolerance - now;
+                    while (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        now = System.nanoTime();
+                        wait = next - tolerance - now;
+                    }
+                    next = Math.max(next, now) + interval;
+                }
+
                 try {
                     System.out.println("Notifying: " + packet.getAddress()
                             + ":" + packet.getPort());
-                    socket.send(packet);
-                } catch (java.io.IOException ioe) {
+                    if (send(channel, selector, packet)) {
+                        sentPackets.add(packet);
+                        sent++;
+                    } else {
+                        System.err.println("Timeout sending to "
+                                + packet.getAddress());
+                        failed++;
+                    }
+                } catch (IOException ioe) {
                     System.err.println(ioe.getMessage());
+                    failed++;
                 }
             }
 
-        } catch (java.net.SocketException se) {
-            System.err.println(se.getMessage());
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
         } finally {
 
-            // Make sure that the socket is closed!
-            if (socket != null)
-                socket.close();
+            // Make sure that the channel is closed!
+            try {
+                if (selector != null)
+                    selector.close();
+                if (channel != null)
+                    channel.close();
+            } catch (IOException consumed) {
+            }
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Notified " + sent + " clients, " + failed
+                + " failed, in " + elapsed + " ms");
+
+        return sentPackets;
+    }
+
+    /*
+     * Read the state file: the modification time of the profile last notified
+     * to each host. A missing or unreadable state file is empty.
+     *
+     * @return Map of host to last notified modification time
+     */
+    private Map<String, Long> readState() {
+
+        Map<String, Long> state = new TreeMap<String, Long>();
+        if (!stateFile.exists()) {
+            return state;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(stateFile), Charset.forName("US-ASCII")));
+            for (String line = reader.readLine(); line != null; line = reader
+                    .readLine()) {
+                String[] fields = line.split("\t", -1);
+                if (line.startsWith("#") || (fields.length != 2)) {
+                    continue;
+                }
+                try {
+                    state.put(fields[0], Long.valueOf(fields[1]));
+                } catch (NumberFormatException consumed) {
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Error reading state file " + stateFile + ": "
+                    + ioe.getMessage());
+            state.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException consumed) {
+                }
+            }
+        }
+        return state;
+    }
+
+    /*
+     * Write the state file.
+     *
+     * @param Map of host to last notified modification time
+     */
+    private void writeState(Map<String, Long> state) {
+
+        StringBuilder contents = new StringBuilder(
+                "# NotifyClientTask state\n");
+        for (Map.Entry<String, Long> entry : state.entrySet()) {
+            contents.append(entry.getKey()).append('\t')
+                    .append(entry.getValue()).append('\n');
+        }
+        try {
+            FileUpdater.update(stateFile, contents.toString().getBytes(
+                    Charset.forName("US-ASCII")));
+        } catch (IOException ioe) {
+            throw new BuildException("Error writing state file "
+                    + stateFile.getAbsolutePath() + ": (" + ioe.toString()
+                    + ")");
+        }
+    }
+
+    /*
+     * Send a packet on the non-blocking channel, waiting for the channel to
+     * become writable when its send buffer is full.
+     *
+     * @return true if the packet has been sent, false on timeout
+     */
+    private boolean send(DatagramChannel channel, Selector selector,
+            DatagramPacket packet) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(packet.getData(),
+                packet.getOffset(), packet.getLength());
+        InetSocketAddress target = new InetSocketAddress(packet.getAddress(),
+                packet.getPort());
+
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(SEND_TIMEOUT);
+        while (channel.send(buffer, target) == 0) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline
+                    - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            selector.select(remaining);
+            selector.selectedKeys().clear();
         }
+        return true;
+    }
+
+    /*
+     * Map of host name to most recent modification time, with open addressing
+     * and linear probing so that the times are stored as primitive longs.
+     */
+    static class HostTimes {
+
+        private String[] hosts = new String[1024];
+
+        private long[] times = new long[1024];
+
+        private int size = 0;
+
+        /*
+         * Set the time of the host if it is more recent than the current one.
+         */
+        void putMax(String host, long time) {
+            int mask = hosts.length - 1;
+            int i = mix(host.hashCode()) & mask;
+            while (hosts[i] != null) {
+                if (hosts[i].equals(host)) {
+                    if (time > times[i]) {
+                        times[i] = time;
+                    }
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            hosts[i] = host;
+            times[i] = time;
+            if (++size > hosts.length / 2) {
+                resize();
+            }
+        }
+
+        /*
+         * Returns the hosts with a positive time.
+         */
+        Map<String, Long> toMap() {
+            Map<String, Long> map = new HashMap<String, Long>(2 * size);
+            for (int i = 0; i < hosts.length; i++) {
+                if ((hosts[i] != null) && (times[i] > 0)) {
+                    map.put(hosts[i], Long.valueOf(times[i]));
+                }
+            }
+            return map;
+        }
+
+        private void resize() {
+            String[] oldHosts = hosts;
+            long[] oldTimes = times;
+            hosts = new String[2 * oldHosts.length];
+            times = new long[2 * oldTimes.length];
+            int mask = hosts.length - 1;
+            for (int j = 0; j < oldHosts.length; j++) {
+                if (oldHosts[j] != null) {
+                    int i = mix(oldHosts[j].hashCode()) & mask;
+                    while (hosts[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    hosts[i] = oldHosts[j];
+                    times[i] = oldTimes[j];
+                }
+            }
+        }
+
+        /* Spread the hash bits, as in HashMap. */
+        private static int mix(int h) {
+            return h ^ (h >>> 16);
+        }
+
     }
 
 }
@@ -0,0 +1,233 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Content checksums of the profiles listed by ProfileInfoTask. The checksums
+ * are cached in a file along with the size and modification time of the
+ * profile they were computed from, so that only new or modified profiles are
+ * read. The missing checksums are computed by a pool of threads.
+ *
+ * Only the checksums of the profiles given to compute() are saved, so entries
+ * for removed profiles are dropped automatically.
+ */
+class ProfileDigests {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private static final String HEADER = "# ProfileInfoTask digest cache: ";
+
+	/* The digest algorithm. */
+	private final String algorithm;
+
+	/* The file holding the cached checksums. */
+	private final File file;
+
+	/* Checksums read from the cache file, indexed by profile name. */
+	private final Map<String, Entry> previous = new HashMap<String, Entry>();
+
+	/* Checksums of the profiles seen during this run. */
+	private final Map<String, Entry> current = new TreeMap<String, Entry>();
+
+	/* Number of checksums computed (not found in the cache) during this run. */
+	private int computed = 0;
+
+	/**
+	 * Create the checksums for the given algorithm, cached in the given file.
+	 * A cache written for another algorithm or unreadable is ignored.
+	 */
+	public ProfileDigests(String algorithm, File file) {
+		try {
+			MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new BuildException("Unsupported checksum algorithm: "
+					+ algorithm);
+		}
+		this.algorithm = algorithm;
+		this.file = file;
+		if (file.exists()) {
+			read();
+		}
+	}
+
+	/**
+	 * Returns the name of the profile attribute holding the checksum: the
+	 * lower-case algorithm name without punctuation (e.g. sha256).
+	 */
+	public String getAttributeName() {
+		StringBuilder name = new StringBuilder(algorithm.length());
+		for (int i = 0; i < algorithm.length(); i++) {
+			char c = Character.toLowerCase(algorithm.charAt(i));
+			if (((c >= 'a') && (c <= 'z')) || ((c >= '0') && (c <= '9'))) {
+				name.append(c);
+			}
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Returns the number of checksums which were not found in the cache.
+	 */
+	public int getComputed() {
+		return computed;
+	}
+
+	/**
+	 * Set the checksum of each of the given profiles, found in the given
+	 * directory, using the given number of threads.
+	 */
+	public void compute(final File dir,
+			Map<String, ProfileInfoTask.Profile> profiles, int threads) {
+
+		LinkedList<String> missing = new LinkedList<String>();
+		for (Map.Entry<String, ProfileInfoTask.Profile> e : profiles
+				.entrySet()) {
+			ProfileInfoTask.Profile profile = e.getValue();
+			Entry entry = previous.get(e.getKey());
+			if ((entry != null) && (entry.size == profile.size)
+					&& (entry.mtime == profile.mtime)) {
+				profile.checksum = entry.checksum;
+				current.put(e.getKey(), entry);
+			} else {
+				missing.add(e.getKey());
+			}
+		}
+		if (missing.size() == 0) {
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(threads, missing.size())));
+		try {
+			LinkedList<Future<String>> results = new LinkedList<Future<String>>();
+			for (final String name : missing) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws IOException {
+						return Checksums.digest(new File(dir, name), algorithm);
+					}
+				}));
+			}
+
+			for (String name : missing) {
+				Future<String> result = results.removeFirst();
+				try {
+					ProfileInfoTask.Profile profile = profiles.get(name);
+					Entry entry = new Entry();
+					entry.size = profile.size;
+					entry.mtime = profile.mtime;
+					entry.checksum = result.get();
+					profile.checksum = entry.checksum;
+					current.put(name, entry);
+					computed++;
+				} catch (ExecutionException ee) {
+					throw new BuildException("Error reading profile "
+							+ new File(dir, name).getAbsolutePath() + ": ("
+							+ ee.getCause().toString() + ")");
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new BuildException(
+							"Interrupted while computing profile checksums");
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Write the checksums of the profiles seen during this run to the cache
+	 * file. The file is only replaced if its content changes.
+	 */
+	public void save() {
+		StringBuilder contents = new StringBuilder(HEADER + algorithm + "\n");
+		for (Map.Entry<String, Entry> e : current.entrySet()) {
+			Entry entry = e.getValue();
+			contents.append(e.getKey()).append('\t').append(entry.size)
+					.append('\t').append(entry.mtime).append('\t')
+					.append(entry.checksum).append('\n');
+		}
+		try {
+			FileUpdater.update(file, contents.toString().getBytes(UTF8));
+		} catch (IOException ioe) {
+			throw new BuildException("Error writing digest cache "
+					+ file.getAbsolutePath() + ": (" + ioe.toString() + ")");
+		}
+	}
+
+	/*
+	 * Read the cache file. Malformed lines are skipped.
+	 */
+	private void read() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), UTF8));
+			String line = reader.readLine();
+			if (!(HEADER + algorithm).equals(line)) {
+				return;
+			}
+			for (line = reader.readLine(); line != null; line = reader
+					.readLine()) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 4) {
+					continue;
+				}
+				try {
+					Entry entry = new Entry();
+					entry.size = Long.parseLong(fields[1]);
+					entry.mtime = Long.parseLong(fields[2]);
+					entry.checksum = fields[3];
+					previous.put(fields[0], entry);
+				} catch (NumberFormatException consumed) {
+				}
+			}
+		} catch (IOException consumed) {
+			previous.clear();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException consumed) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * The cached checksum of one profile.
+	 */
+	static class Entry {
+
+		long size;
+
+		long mtime;
+
+		String checksum;
+
+	}
+
+}
@@ -6,12 +6,23 @@ ${author-info}
 
 package org.quattor.ant;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
@@ -34,7 +45,28 @@ public class ProfileInfoTask extends Task implements java.io.FileFilter {
 	
 	/* Control printing of informational messages in this task */
 	private boolean verbose = true;
-	
+
+	/* Number of shards the profile list is split into (0 for a single file) */
+	private int shards = 0;
+
+	/* Also write gzip compressed copies of the profile info files */
+	private boolean compress = false;
+
+	/* Digest algorithm for the profile checksums (null for no checksum) */
+	private String checksum = null;
+
+	/* File caching the profile checksums (default in the profiles directory) */
+	private File digestCache = null;
+
+	/* Number of threads used to compute the profile checksums */
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/* The checksum attribute of the profile entries (e.g. sha256) */
+	private String checksumAttribute = null;
+
+	/* The shard files (and compressed copies) found by the directory scan */
+	private List<String> shardFiles = new ArrayList<String>();
+
 	/*
 	 * Method used by ant to execute this task.
 	 */
@@ -67,39 +99,310 @@ public class ProfileInfoTask extends Task implements java.io.FileFilter {
 			System.out.println("Updating "+profilesInfoName+" in "+outputdir);			
 		}
 
-		// Get all of the profiles in the given directory.
-		StringBuffer contents = new StringBuffer(
-				"<?xml version='1.0' encoding='utf-8'?>\n");
-		contents.append("<profiles>\n");
-		File[] files = outputdir.listFiles(this);
-                if (files != null) {
-                    for (File file : files) {
-                        long mtime = file.lastModified();
-                        contents.append("<profile mtime='");
-                        contents.append(mtime);
-                        contents.append("'>");
-                        contents.append(file.getName());
-                        contents.append("</profile>\n");
-                    }
-                } else {
-                    throw new BuildException("Files Array is Null");
-                }
-		contents.append("</profiles>\n");
+		// Get all of the profiles in the given directory with their
+		// modification time, sorted by name.
+		TreeMap<String, Profile> profiles = scanProfiles(outputdir);
+
+		// Add the content checksums, reusing the cached ones for the
+		// profiles which didn't change.
+		checksumAttribute = null;
+		if (checksum != null) {
+			File cache = (digestCache != null) ? digestCache : new File(outputdir, "." + profilesInfoName + ".digests");
+			ProfileDigests digests = new ProfileDigests(checksum, cache);
+			digests.compute(outputdir, profiles, threads);
+			digests.save();
+			checksumAttribute = digests.getAttributeName();
+			if ( debugTask ) {
+				System.out.println("Computed "+digests.getComputed()+" "+checksum+" checksums ("+(profiles.size()-digests.getComputed())+" cached)");
+			}
+		}
 
-		// Create the output file.
 		File info = new File(outputdir, profilesInfoName);
+
+		if (shards > 0) {
+			updateShards(outputdir, info, profiles);
+		} else {
+			updateProfilesInfo(info, profiles);
+		}
+
+		// Remove the shards left over from a run with another number of shards.
+		if (shardFiles.size() > 0) {
+			removeShards(outputdir);
+		}
+
+	}
+
+	/*
+	 * Update a profile info file with the given profiles. The file is left
+	 * untouched if its content doesn't change.
+	 */
+	private void updateProfilesInfo(File info, TreeMap<String, Profile> profiles) {
+
+		// Create the output file.
+		boolean written = writeProfilesInfo(info, profiles);
+		if (!written && ( verbose || debugTask )) {
+			System.out.println(info.getName()+" is up-to-date");
+		}
+		updateCompressed(info, written);
+	}
+
+	/*
+	 * Write the gzip compressed copy of a profile info file if the file has
+	 * been modified or the copy doesn't match it. The copy is given the
+	 * modification time of the file, so a copy with another modification
+	 * time (e.g. after a crash between both writes) is rewritten. A stale
+	 * copy is removed if compression is disabled.
+	 */
+	private void updateCompressed(File info, boolean modified) {
+
+		File gz = new File(info.getPath() + ".gz");
+		if (!compress) {
+			if (gz.exists() && !gz.delete()) {
+				throw new BuildException("Can't remove compressed profile info file. "
+						+ gz.getAbsolutePath() + "\n");
+			}
+			return;
+		}
+		if (!modified && gz.isFile() && (gz.lastModified() == info.lastModified())) {
+			return;
+		}
+
+		File tmp = null;
 		try {
+			tmp = FileUpdater.createTempFile(gz);
+			// Closing the gzip stream releases its native deflater and closes
+			// the file.
+			FileOutputStream os = new FileOutputStream(tmp);
+			GZIPOutputStream zos = null;
+			try {
+				zos = new GZIPOutputStream(os, 65536);
+				Files.copy(info.toPath(), zos);
+				zos.finish();
+				os.getFD().sync();
+			} finally {
+				if (zos != null) {
+					zos.close();
+				} else {
+					os.close();
+				}
+			}
+			tmp.setLastModified(info.lastModified());
+			FileUpdater.commit(tmp, gz);
+		} catch (IOException ioe) {
+			throw new BuildException("Can't write compressed profile info file. "
+					+ gz.getAbsolutePath() + "\n");
+		} finally {
+			if ((tmp != null) && tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/*
+	 * Split the profiles into shards by hash of their name and update each
+	 * shard file. The top-level profile info file then lists the shards with
+	 * their SHA-256 checksum so that clients only need to refetch the shards
+	 * which changed.
+	 */
+	private void updateShards(File outputdir, File info, TreeMap<String, Profile> profiles) {
+
+		ArrayList<TreeMap<String, Profile>> buckets = new ArrayList<TreeMap<String, Profile>>(shards);
+		for (int i = 0; i < shards; i++) {
+			buckets.add(new TreeMap<String, Profile>());
+		}
+		for (Map.Entry<String, Profile> profile : profiles.entrySet()) {
+			int bucket = (profile.getKey().hashCode() & 0x7fffffff) % shards;
+			buckets.get(bucket).put(profile.getKey(), profile.getValue());
+		}
 
-			// Open the output file.
-			Writer writer = new OutputStreamWriter(new FileOutputStream(info), Charset.forName("utf-8"));
-			writer.write(contents.toString());
-			writer.close();
+		StringBuilder contents = new StringBuilder("<?xml version='1.0' encoding='utf-8'?>\n");
+		contents.append("<profiles-index>\n");
+		for (int i = 0; i < shards; i++) {
+			File shard = new File(outputdir, getShardName(i));
+			updateProfilesInfo(shard, buckets.get(i));
+			try {
+				contents.append("<shard sha256='");
+				contents.append(Checksums.digest(shard, "SHA-256"));
+				contents.append("'>");
+				contents.append(shard.getName());
+				contents.append("</shard>\n");
+			} catch (IOException ioe) {
+				throw new BuildException("Error reading profile info file "
+						+ shard.getAbsolutePath() + ": (" + ioe.toString() + ")");
+			}
+		}
+		contents.append("</profiles-index>\n");
 
+		boolean written;
+		try {
+			written = FileUpdater.update(info, contents.toString().getBytes(Charset.forName("utf-8")));
 		} catch (IOException ioe) {
 			throw new BuildException("Can't write profile info file. "
 					+ info.getAbsolutePath() + "\n");
 		}
+		updateCompressed(info, written);
+	}
+
+	/*
+	 * The name of a shard file: the profile info file name with the shard
+	 * number, e.g. profiles-info-07.xml.
+	 */
+	private String getShardName(int shard) {
+		StringBuilder number = new StringBuilder(Integer.toString(shard));
+		int width = Math.max(2, Integer.toString(shards - 1).length());
+		while (number.length() < width) {
+			number.insert(0, '0');
+		}
+		return getShardPrefix() + number + getShardSuffix();
+	}
+
+	private String getShardPrefix() {
+		int dot = profilesInfoName.lastIndexOf('.');
+		return ((dot > 0) ? profilesInfoName.substring(0, dot) : profilesInfoName) + "-";
+	}
+
+	private String getShardSuffix() {
+		int dot = profilesInfoName.lastIndexOf('.');
+		return (dot > 0) ? profilesInfoName.substring(dot) : "";
+	}
+
+	/*
+	 * Remove the shard files (and their compressed copies) found by the
+	 * directory scan which are not part of the current set of shards. Shards
+	 * named with another number width are found too.
+	 */
+	private void removeShards(File outputdir) {
+
+		HashSet<String> current = new HashSet<String>();
+		for (int i = 0; i < shards; i++) {
+			current.add(getShardName(i));
+		}
 
+		for (String shardFile : shardFiles) {
+			File file = new File(outputdir, shardFile);
+			String name = shardFile;
+			if (name.endsWith(".gz")) {
+				name = name.substring(0, name.length() - 3);
+			}
+			if (!current.contains(name)) {
+				if ( debugTask ) {
+					System.out.println("Removing old shard "+file.getName());
+				}
+				if (!file.delete()) {
+					throw new BuildException("Can't remove old shard file. "
+							+ file.getAbsolutePath() + "\n");
+				}
+			}
+		}
+	}
+
+	/*
+	 * Check if the given file name is one of the files written by this task.
+	 */
+	private boolean isProfilesInfo(String name) {
+		if (name.endsWith(".gz")) {
+			name = name.substring(0, name.length() - 3);
+		}
+		return profilesInfoName.equals(name) || isShard(name);
+	}
+
+	/*
+	 * Check if the given file name is a shard file name (of any number width).
+	 */
+	private boolean isShard(String name) {
+		String prefix = getShardPrefix();
+		String suffix = getShardSuffix();
+		if (!name.startsWith(prefix) || !name.endsWith(suffix)
+				|| (name.length() <= prefix.length() + suffix.length())) {
+			return false;
+		}
+		for (int i = prefix.length(); i < name.length() - suffix.length(); i++) {
+			if ((name.charAt(i) < '0') || (name.charAt(i) > '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Get the modification time and size of the profiles in the given
+	 * directory, indexed by name. The directory is streamed and the attributes of each
+	 * entry are read with a single call. The shard files seen are recorded.
+	 */
+	private TreeMap<String, Profile> scanProfiles(File outputdir) {
+
+		TreeMap<String, Profile> profiles = new TreeMap<String, Profile>();
+		shardFiles.clear();
+		DirectoryStream<Path> stream = null;
+		try {
+			stream = Files.newDirectoryStream(outputdir.toPath());
+			for (Path path : stream) {
+				String name = path.getFileName().toString();
+				if (accept(name)) {
+					BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+					profiles.put(name, new Profile(attrs.lastModifiedTime().toMillis(), attrs.size()));
+				} else if (isShard(name.endsWith(".gz") ? name.substring(0, name.length() - 3) : name)) {
+					shardFiles.add(name);
+				}
+			}
+		} catch (IOException ioe) {
+			throw new BuildException("Error reading directory " + outputdir
+					+ ": (" + ioe.toString() + ")");
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException consumed) {
+				}
+			}
+		}
+
+		return profiles;
+	}
+
+	/*
+	 * Write the profile info file. The entries are streamed to a temporary
+	 * file which replaces the existing file only if the content differs. The
+	 * temporary file is only synced to disk if it replaces the file.
+	 *
+	 * @return true if the file has been written
+	 */
+	private boolean writeProfilesInfo(File info, TreeMap<String, Profile> profiles) {
+
+		File tmp = null;
+		try {
+			tmp = FileUpdater.createTempFile(info);
+			FileOutputStream os = new FileOutputStream(tmp);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(os, Charset.forName("utf-8")), 65536);
+			try {
+				writer.write("<?xml version='1.0' encoding='utf-8'?>\n");
+				writer.write("<profiles>\n");
+				for (Map.Entry<String, Profile> profile : profiles.entrySet()) {
+					writer.write("<profile mtime='");
+					writer.write(Long.toString(profile.getValue().mtime));
+					if (profile.getValue().checksum != null) {
+						writer.write("' ");
+						writer.write(checksumAttribute);
+						writer.write("='");
+						writer.write(profile.getValue().checksum);
+					}
+					writer.write("'>");
+					writer.write(profile.getKey());
+					writer.write("</profile>\n");
+				}
+				writer.write("</profiles>\n");
+			} finally {
+				writer.close();
+			}
+			return FileUpdater.replace(tmp, info);
+		} catch (IOException ioe) {
+			throw new BuildException("Can't write profile info file. "
+					+ info.getAbsolutePath() + "\n");
+		} finally {
+			if ((tmp != null) && tmp.exists()) {
+				tmp.delete();
+			}
+		}
 	}
 
 	/*
@@ -117,10 +420,84 @@ public class ProfileInfoTask extends Task implements java.io.FileFilter {
 	 */
 	public boolean accept(File file) {
 		String name = file.getName();
-		boolean ok = (!profilesInfoName.equals(name)) && !file.isHidden();
+		boolean ok = (!isProfilesInfo(name)) && !file.isHidden();
 		return ok;
 	}
 
+	/*
+	 * Same selection as accept(File) from the file name alone: hidden files
+	 * are the ones whose name starts with a dot.
+	 */
+	private boolean accept(String name) {
+		return !isProfilesInfo(name) && !name.startsWith(".");
+	}
+
+	/**
+	 * Split the list of profiles into the given number of shard files (e.g.
+	 * profiles-info-00.xml), each profile being assigned to a shard by hash of
+	 * its name. The profile info file then only lists the shard files with
+	 * their SHA-256 checksum. Only the shards which changed are rewritten. The
+	 * default (0) writes all profiles to the profile info file.
+	 * 
+	 * @param shards
+	 *            number of shard files
+	 */
+	public void setShards(int shards) {
+		if (shards < 0) {
+			throw new BuildException("shards must be a positive number");
+		}
+		this.shards = shards;
+	}
+
+	/**
+	 * Setting this flag will also write a gzip compressed copy of each profile
+	 * info file (e.g. profiles-info.xml.gz) so that web servers can serve
+	 * precompressed content. The copy is only recompressed when the file
+	 * changes.
+	 * 
+	 * @param compress
+	 *            flag to write compressed profile info files
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Add a checksum of the content of each profile to the profile info file,
+	 * computed with the given digest algorithm (e.g. SHA-256). The checksum is
+	 * written as an attribute named after the algorithm (e.g. sha256). By
+	 * default, no checksum is written.
+	 * 
+	 * @param checksum
+	 *            name of the digest algorithm
+	 */
+	public void setChecksum(String checksum) {
+		this.checksum = (checksum.length() > 0) ? checksum : null;
+	}
+
+	/**
+	 * Set the file caching the checksums of the profiles by size and
+	 * modification time, so that unchanged profiles are not read again. The
+	 * default is a hidden file in the profiles directory.
+	 * 
+	 * @param digestCache
+	 *            file caching the profile checksums
+	 */
+	public void setDigestCache(File digestCache) {
+		this.digestCache = digestCache;
+	}
+
+	/**
+	 * Set the number of threads used to compute the profile checksums. The
+	 * default is the number of available processors.
+	 * 
+	 * @param threads
+	 *            number of threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = (threads > 0) ? threads : 1;
+	}
+
 	/**
 	 * Setting this flag will print debugging information from the task itself.
 	 * This is primarily useful if one wants to debug a build using the command
@@ -143,4 +520,23 @@ public class ProfileInfoTask extends Task implements java.io.FileFilter {
 		this.verbose = verbose;
 	}
 
+	/**
+	 * The information listed for a profile. The size is only used to validate
+	 * cached checksums.
+	 */
+	static class Profile {
+
+		final long mtime;
+
+		final long size;
+
+		String checksum = null;
+
+		Profile(long mtime, long size) {
+			this.mtime = mtime;
+			this.size = size;
+		}
+
+	}
+
 }
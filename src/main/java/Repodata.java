@@ -0,0 +1,265 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Read the package list of a yum/dnf repository from its metadata
+ * (repodata/repomd.xml and the primary package list it references) instead
+ * of scraping the HTML directory listing. The primary list is parsed as a
+ * stream, so only the package currently being read is kept in memory.
+ */
+class Repodata {
+
+	/* Parser feature rejecting documents with a DTD. */
+	private static final String DISALLOW_DOCTYPE = "http://apache.org/xml/features/disallow-doctype-decl";
+
+	/* Location of the index, relative to the repository URL. */
+	private static final String REPOMD = "repodata/repomd.xml";
+
+	/* The URL of the primary package list (gzipped). */
+	private final URL primary;
+
+	/*
+	 * The checksum of the primary package list (or the repository revision if
+	 * there is no checksum). It changes whenever the package list changes.
+	 */
+	private final String signature;
+
+	private Repodata(URL primary, String signature) {
+		this.primary = primary;
+		this.signature = signature;
+	}
+
+	/**
+	 * Read the repomd.xml index of the repository at the given URL. This
+	 * throws a FileNotFoundException if the repository has no metadata and
+	 * returns null if the metadata don't include a primary list that can be
+	 * read (only gzip compression is supported).
+	 */
+	public static Repodata read(URL url) throws IOException, SAXException {
+
+		String base = url.toExternalForm();
+		if (!base.endsWith("/")) {
+			base = base + "/";
+		}
+		URL repomd = new URL(base + REPOMD);
+
+		RepomdHandler handler = new RepomdHandler();
+		parse(repomd, false, handler);
+
+		if ((handler.location == null) || !handler.location.endsWith(".gz")) {
+			return null;
+		}
+
+		URL primary;
+		try {
+			primary = new URL(new URL(base), handler.location);
+		} catch (MalformedURLException mue) {
+			return null;
+		}
+		String signature = (handler.checksum != null) ? handler.checksum
+				: handler.revision;
+
+		return new Repodata(primary, signature);
+	}
+
+	/**
+	 * Returns a value identifying the current content of the package list or
+	 * null if the metadata don't provide one.
+	 */
+	public String getSignature() {
+		return signature;
+	}
+
+	/**
+	 * Read the primary package list, adding a (name, version, arch) triplet
+	 * to the given list for each RPM package. As with package file names, the
+	 * version is made of the version and the release of the package.
+	 */
+	public void readPackages(List<String[]> packages) throws IOException,
+			SAXException {
+		parse(primary, true, new PrimaryHandler(packages));
+	}
+
+	@Override
+	public String toString() {
+		return primary.toExternalForm();
+	}
+
+	/*
+	 * Parse the XML document at the given URL with the given handler,
+	 * uncompressing it if necessary. The metadata come from a remote server:
+	 * documents with a DTD are rejected so that no external entity can be
+	 * resolved.
+	 */
+	private static void parse(URL url, boolean gzipped, DefaultHandler handler)
+			throws IOException, SAXException {
+
+		SAXParser parser;
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature(DISALLOW_DOCTYPE, true);
+			factory.setXIncludeAware(false);
+			parser = factory.newSAXParser();
+		} catch (ParserConfigurationException pce) {
+			throw new SAXException(pce);
+		}
+
+		InputStream is = url.openStream();
+		try {
+			if (gzipped) {
+				is = new GZIPInputStream(is, 65536);
+			}
+			parser.parse(is, handler);
+		} finally {
+			is.close();
+		}
+	}
+
+	/*
+	 * SAX handler retrieving the location and checksum of the primary package
+	 * list and the revision from repomd.xml.
+	 */
+	private static class RepomdHandler extends DefaultHandler {
+
+		private String location = null;
+
+		private String checksum = null;
+
+		private String revision = null;
+
+		private boolean inPrimary = false;
+
+		private StringBuilder text = null;
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+				Attributes attributes) {
+			if ("data".equals(qName)) {
+				inPrimary = "primary".equals(attributes.getValue("type"));
+			} else if (inPrimary && "location".equals(qName)) {
+				location = attributes.getValue("href");
+			} else if ((inPrimary && "checksum".equals(qName))
+					|| "revision".equals(qName)) {
+				text = new StringBuilder();
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			if ("data".equals(qName)) {
+				inPrimary = false;
+			} else if (text != null) {
+				if ("revision".equals(qName)) {
+					revision = text.toString().trim();
+				} else {
+					checksum = text.toString().trim();
+				}
+				text = null;
+			}
+		}
+
+		@Override
+		public void characters(char[] chars, int start, int length) {
+			if (text != null) {
+				text.append(chars, start, length);
+			}
+		}
+
+	}
+
+	/*
+	 * SAX handler extracting the name, version, release and architecture of
+	 * each package in the primary package list. Only the direct children of
+	 * the package element are considered.
+	 */
+	private static class PrimaryHandler extends DefaultHandler {
+
+		private final List<String[]> packages;
+
+		/* Depth of the current element relative to the package element. */
+		private int depth = -1;
+
+		private String name = null;
+
+		private String arch = null;
+
+		private String version = null;
+
+		private StringBuilder text = null;
+
+		public PrimaryHandler(List<String[]> packages) {
+			this.packages = packages;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+				Attributes attributes) {
+			if (depth >= 0) {
+				depth++;
+				if (depth == 1) {
+					if ("name".equals(qName) || "arch".equals(qName)) {
+						text = new StringBuilder();
+					} else if ("version".equals(qName)) {
+						version = attributes.getValue("ver") + "-"
+								+ attributes.getValue("rel");
+					}
+				}
+			} else if ("package".equals(qName)) {
+				depth = 0;
+				name = null;
+				arch = null;
+				version = null;
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			if (depth == 0) {
+				if ((name != null) && (arch != null) && (version != null)) {
+					packages.add(new String[] { name, version, arch });
+				}
+			} else if ((depth == 1) && (text != null)) {
+				if ("name".equals(qName)) {
+					name = text.toString().trim();
+				} else {
+					arch = text.toString().trim();
+				}
+				text = null;
+			}
+			if (depth >= 0) {
+				depth--;
+			}
+		}
+
+		@Override
+		public void characters(char[] chars, int start, int length) {
+			if (text != null) {
+				text.append(chars, start, length);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,193 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * On-disk cache of the package lists retrieved by RepositoryTask. The cache
+ * directory contains one file per repository URL with the HTTP validators
+ * (ETag and Last-Modified) returned with the listing and the packages found in
+ * it. These values are used to send conditional requests and to reuse the
+ * package list when the server answers "304 Not Modified". For repositories
+ * read from their yum metadata, the signature of the primary package list is
+ * saved instead of the HTTP validators.
+ *
+ * Each cache file is independent and is replaced atomically, so the cache can
+ * be used by several fetching threads at the same time.
+ */
+class RepositoryCache {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	/* The directory containing the cache files. */
+	private final File directory;
+
+	/**
+	 * Create a cache using the given directory, creating it if necessary.
+	 */
+	public RepositoryCache(File directory) {
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new BuildException("cache directory could not be created: "
+					+ directory);
+		}
+		if (!directory.isDirectory()) {
+			throw new BuildException("cache directory is not a directory: "
+					+ directory);
+		}
+		this.directory = directory;
+	}
+
+	/**
+	 * Read the cache entry for the given URL. An unreadable or malformed entry
+	 * is treated as missing.
+	 *
+	 * @return the cached entry or null if there is none
+	 */
+	public Entry load(URL url) {
+
+		File file = getFile(url);
+		if (!file.exists()) {
+			return null;
+		}
+
+		Entry entry = new Entry();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), UTF8));
+
+			String storedUrl = null;
+			for (String line = reader.readLine(); line != null; line = reader
+					.readLine()) {
+				int i = line.indexOf('=');
+				if (line.startsWith("#") || (i < 0)) {
+					continue;
+				}
+				String key = line.substring(0, i);
+				String value = line.substring(i + 1);
+				if ("url".equals(key)) {
+					storedUrl = value;
+				} else if ("etag".equals(key)) {
+					entry.etag = value;
+				} else if ("last-modified".equals(key)) {
+					entry.lastModified = value;
+				} else if ("repodata".equals(key)) {
+					entry.repodata = value;
+				} else if ("pkg".equals(key)) {
+					String[] pkg = value.split("\t");
+					if (pkg.length != 3) {
+						return null;
+					}
+					entry.packages.add(pkg);
+				}
+			}
+
+			// Protect against (unlikely) file name collisions.
+			if (!url.toExternalForm().equals(storedUrl)) {
+				return null;
+			}
+
+		} catch (IOException consumed) {
+			return null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException consumed) {
+				}
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Write the cache entry for the given URL, replacing any existing one.
+	 */
+	public void store(URL url, Entry entry) {
+
+		File file = getFile(url);
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(file.getName(), ".tmp", directory);
+			Writer writer = new OutputStreamWriter(new FileOutputStream(tmp),
+					UTF8);
+			try {
+				writer.write("# RepositoryTask package list cache\n");
+				writer.write("url=" + url.toExternalForm() + "\n");
+				if (entry.etag != null) {
+					writer.write("etag=" + entry.etag + "\n");
+				}
+				if (entry.lastModified != null) {
+					writer.write("last-modified=" + entry.lastModified + "\n");
+				}
+				if (entry.repodata != null) {
+					writer.write("repodata=" + entry.repodata + "\n");
+				}
+				for (String[] pkg : entry.packages) {
+					writer.write("pkg=" + pkg[0] + "\t" + pkg[1] + "\t"
+							+ pkg[2] + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+		} catch (IOException ioe) {
+			if (tmp != null) {
+				tmp.delete();
+			}
+			throw new BuildException("Error writing cache file "
+					+ file.getAbsolutePath() + ": (" + ioe.toString() + ")");
+		}
+	}
+
+	/*
+	 * The cache file for a URL is named after the SHA-1 digest of the URL.
+	 */
+	private File getFile(URL url) {
+		MessageDigest md = Checksums.newDigest("SHA-1");
+		String name = Checksums.toHex(md.digest(url.toExternalForm()
+				.getBytes(UTF8)));
+		return new File(directory, name + ".cache");
+	}
+
+	/**
+	 * The cached information for one repository URL. Each package is stored
+	 * as a (name, version, arch) triplet.
+	 */
+	static class Entry {
+
+		String etag = null;
+
+		String lastModified = null;
+
+		String repodata = null;
+
+		final LinkedList<String[]> packages = new LinkedList<String[]>();
+
+	}
+
+}
@@ -6,30 +6,42 @@ ${author-info}
 
 package org.quattor.ant;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.LineNumberReader;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.types.FileSet;
+import org.xml.sax.SAXException;
 
 public class RepositoryTask extends Task {
 
@@ -38,37 +50,9 @@ public class RepositoryTask extends Task {
          */
         private final static String version = "${version}";
 
-	/* The pattern for matching the name information. */
-	private static Pattern namePattern = Pattern
-			.compile("\\s*#\\s*name\\s*=\\s*([^\\s]+)\\s*");
-
-	/* The pattern for matching the owner information. */
-	private static Pattern ownerPattern = Pattern
-			.compile("\\s*#\\s*owner\\s*=\\s*([^\\s]+)\\s*");
-
-	/* The pattern for matching the url information. */
-	private static Pattern urlPattern = Pattern
-			.compile("\\s*#\\s*url\\s*=\\s*([^\\s]+)\\s*");
-
-	/* The pattern for matching the package information. */
-	private static Pattern pkgPattern = Pattern
-			.compile("\\s*#\\s*pkg\\s*=\\s*([^\\s]+)\\s*");
-
-	/* The pattern for matching the template name information. */
-	private static Pattern templatePattern = Pattern
-			.compile("\\s*structure\\s*template\\s*([^\\s]+)\\s*;");
-
-	/* The pattern for matching the name PAN property. */
-	private static Pattern namePanPattern = Pattern
-			.compile("\\s*[\"']name[\"']\\s*=\\s*[\"']([^\\s]+)[\"']\\s*;\\s*");
-
-	/*
-	 * The pattern for matching an anchor with href attribute (and ending with
-	 * rpm).
-	 */
-	private static Pattern hrefPattern = Pattern.compile(
-			"<a\\s+.*?href=\"(.*?\\.rpm)\"\\s*>", Pattern.CASE_INSENSITIVE
-					| Pattern.MULTILINE);
+	/* The generation date in the template header, ignored when comparing. */
+	private static final Pattern generatedPattern = Pattern.compile(
+			"^# Generated by RepositoryTask on .*$", Pattern.MULTILINE);
 
 	/* The list of configuration files. */
 	private LinkedList<File> files = new LinkedList<File>();
@@ -85,6 +69,24 @@ public class RepositoryTask extends Task {
 	/* Namespace of the template defining the list of all repositories configured */
 	private String listName = "repository/allrepositories";
 
+	/* Number of repository URLs fetched concurrently */
+	private int threads = 1;
+
+	/* Directory of the package list cache (no cache if null) */
+	private File cacheDir = null;
+
+	/* The package list cache, created from cacheDir when the task runs */
+	private RepositoryCache cache = null;
+
+	/* Use the yum metadata (repodata) of the repositories when available */
+	private boolean repodata = false;
+
+	/* File of the template manifest (no manifest if null) */
+	private File manifestFile = null;
+
+	/* The template manifest, created from manifestFile when the task runs */
+	private TemplateManifest manifest = null;
+
 	
 	/*
 	 * Method used by ant to execute this task.
@@ -94,19 +96,47 @@ public class RepositoryTask extends Task {
 		// need to get path as parameter
 		String listFileName = listName+".tpl";
 		LinkedList<Repository> repositoryList = new LinkedList<Repository>();
+
+		if (cacheDir != null) {
+			cache = new RepositoryCache(cacheDir);
+		}
+		if (manifestFile != null) {
+			manifest = new TemplateManifest(manifestFile);
+		}
 		
-		// Loop over all of the given files. Write those that are repository
-		// templates with the proper embedded comments and that have changed.
+		// Loop over all of the given files, keeping those that are repository
+		// templates with the proper embedded comments.
 		for (File f : files) {
 			Repository r = parseTemplate(f);
 			if (r != null) {
-				if (r.write()) {
-					System.out.println("Updating: " + r);
-				}
 				repositoryList.add(r);
 			}
 		}
 
+		// Retrieve the package lists of all repositories, possibly in
+		// parallel. All failures are reported together once the other
+		// repositories have been written.
+		Map<Repository, String> errors = fetchRepositories(repositoryList);
+
+		// Write the templates that have changed. This is done sequentially in
+		// the order of the fileset to keep the output deterministic. The
+		// templates of the repositories which couldn't be fetched are kept.
+		for (Repository r : repositoryList) {
+			if (errors.containsKey(r)) {
+				continue;
+			}
+			if (r.write()) {
+				System.out.println("Updating: " + r);
+				if (manifest != null) {
+					manifest.record(r.template, r.getManifestEntry(), null);
+				}
+			}
+		}
+
+		if (manifest != null) {
+			manifest.save();
+		}
+
 		// Create a template defining a variable with all existing repositories
 		// if genList is true
 		if (this.genList) {			
@@ -121,8 +151,8 @@ public class RepositoryTask extends Task {
 			}
 		
 			try {
-                                System.out.println("Updating "+listFileName);
-			        OutputStreamWriter allRepos = new OutputStreamWriter(new FileOutputStream(listFileName), Charset.forName("utf-8"));
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			        OutputStreamWriter allRepos = new OutputStreamWriter(buffer, Charset.forName("utf-8"));
 				allRepos.write("# List of all existing repository templates\n");
 				allRepos.write("template "+listName+";\n\n");
 				allRepos.write("variable ALL_REPOSITORIES= dict( \n");
@@ -131,11 +161,24 @@ public class RepositoryTask extends Task {
 				}
 				allRepos.write("); \n");
 				allRepos.close();
+				if (FileUpdater.update(new File(listFileName), buffer.toByteArray())) {
+					System.out.println("Updating "+listFileName);
+				}
 				}
 			catch (Exception e) {
 				throw new BuildException("Error creating list of all configured repositories: " + e.getMessage());
 			}		
 		}
+
+		if (errors.size() > 0) {
+			StringBuilder report = new StringBuilder();
+			report.append("Error getting RPM list for " + errors.size()
+					+ " repositories:");
+			for (Map.Entry<Repository, String> error : errors.entrySet()) {
+				report.append("\n    " + error.getKey() + ": " + error.getValue());
+			}
+			throw new BuildException(report.toString());
+		}
 			
 		
 	}
@@ -152,6 +195,57 @@ public class RepositoryTask extends Task {
 		this.debugTask = debugTask;
 	}
 
+	/**
+	 * Set the number of repository URLs which are fetched and parsed
+	 * concurrently. The default is 1 (sequential fetching).
+	 * 
+	 * @param threads
+	 *            number of concurrent fetches
+	 */
+	public void setThreads(int threads) {
+		this.threads = (threads > 0) ? threads : 1;
+	}
+
+	/**
+	 * Set the directory used to cache the package list of each repository
+	 * between runs. When set, HTTP listings are retrieved with conditional
+	 * requests (ETag/Last-Modified) and the cached package list is reused if
+	 * the listing hasn't changed.
+	 * 
+	 * @param cacheDir
+	 *            cache directory (created if necessary)
+	 */
+	public void setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Setting this flag will read the package list of each repository from its
+	 * yum metadata (repodata/repomd.xml and the primary package list) rather
+	 * than from the HTML directory listing. The directory listing is still
+	 * used for repositories without usable metadata. When a cache directory
+	 * is also set, the primary package list is only read if its checksum has
+	 * changed since the previous run.
+	 * 
+	 * @param repodata
+	 *            flag to use the repository metadata
+	 */
+	public void setRepodata(boolean repodata) {
+		this.repodata = repodata;
+	}
+
+	/**
+	 * Set the file used to record the repository templates between runs. A
+	 * template which hasn't changed since the previous run is not parsed
+	 * again: the values recorded in the manifest are used instead.
+	 * 
+	 * @param manifestFile
+	 *            manifest file (created if necessary)
+	 */
+	public void setManifest(File manifestFile) {
+		this.manifestFile = manifestFile;
+	}
+
 	/**
 	 * Setting this flag will generate a template with a list of all repositories.
 	 *  
@@ -184,6 +278,75 @@ public class RepositoryTask extends Task {
 		this.listName = listNamespace;
 	}
 	
+	/*
+	 * Retrieve the package list of each repository, using a pool of 'threads'
+	 * workers. Errors are collected for every repository once all fetches
+	 * have completed.
+	 * 
+	 * @param repositories list of repositories to fetch
+	 * 
+	 * @return the error message of each repository which couldn't be
+	 *         fetched, in the order of the list
+	 */
+	private Map<Repository, String> fetchRepositories(LinkedList<Repository> repositories) {
+
+		Map<Repository, String> errors = new LinkedHashMap<Repository, String>();
+
+		if ((threads > 1) && (repositories.size() > 1)) {
+
+			if (debugTask) {
+				System.out.println("Fetching " + repositories.size()
+						+ " repositories with " + threads + " threads");
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+					threads, repositories.size()));
+			try {
+				LinkedList<Future<Void>> results = new LinkedList<Future<Void>>();
+				for (final Repository r : repositories) {
+					results.add(executor.submit(new Callable<Void>() {
+						public Void call() {
+							r.fetch();
+							return null;
+						}
+					}));
+				}
+
+				// Futures are checked in submission order so that the error
+				// report is in the same order as the fileset.
+				Iterator<Repository> r = repositories.iterator();
+				for (Future<Void> result : results) {
+					Repository repository = r.next();
+					try {
+						result.get();
+					} catch (ExecutionException ee) {
+						Throwable cause = ee.getCause();
+						errors.put(repository,
+								(cause instanceof BuildException) ? cause
+										.getMessage() : cause.toString());
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw new BuildException("Interrupted while fetching repository "
+								+ repository);
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+
+		} else {
+			for (Repository r : repositories) {
+				try {
+					r.fetch();
+				} catch (BuildException be) {
+					errors.put(r, be.getMessage());
+				}
+			}
+		}
+
+		return errors;
+	}
+
 	/*
 	 * Support nested fileset elements. This is called by ant only after all of
 	 * the children of the fileset have been processed. Collect all of the
@@ -231,9 +394,19 @@ public class RepositoryTask extends Task {
 	 * owner and URL. If 'structure template' line exists in the template, the
 	 * template name is retrieved from this line to be preserved if updating the
 	 * template.
+	 * 
+	 * If a manifest is used and the template hasn't changed since it was
+	 * recorded, the recorded values are used without reading the template.
 	 */
 	public Repository parseTemplate(File f) {
 
+		if (manifest != null) {
+			TemplateManifest.Entry entry = manifest.lookup(f);
+			if (entry != null) {
+				return createRepository(f, entry);
+			}
+		}
+
 		Repository repository = null;
 
 		// Setup the values for the repository.
@@ -246,52 +419,51 @@ public class RepositoryTask extends Task {
 		TreeSet<String> packages = new TreeSet<String>();
 
 		LineNumberReader reader = null;
+		MessageDigest md = null;
 		try {
 
-			// Open the file for reading.
-			reader = new LineNumberReader(new InputStreamReader(new FileInputStream(template), Charset.forName("utf-8")));
+			// Open the file for reading. The content digest needed by the
+			// manifest is computed while reading.
+			InputStream is = new FileInputStream(template);
+			if (manifest != null) {
+				md = TemplateManifest.newDigest();
+				is = new DigestInputStream(is, md);
+			}
+			reader = new LineNumberReader(new InputStreamReader(is, Charset.forName("utf-8")));
 
 			// Loop over all lines searching for key/value pair matches in
-			// comment lines.
+			// comment lines. Each line is classified in a single pass.
 			// If more than one line has the same value, the later one is used.
 			// The whole file is parsed to build the list of current packages
 			// used
 			// later to check if repository template content has changed.
+			TemplateLineParser parser = new TemplateLineParser();
 			String line = reader.readLine();
 			while (line != null) {
 
-				Matcher m = namePattern.matcher(line);
-				if (m.matches()) {
-					name = m.group(1);
-				}
-
-				m = ownerPattern.matcher(line);
-				if (m.matches()) {
-					owner = m.group(1);
-				}
-
-				m = urlPattern.matcher(line);
-				if (m.matches()) {
+				switch (parser.parse(line)) {
+				case TemplateLineParser.NAME:
+					name = parser.getValue();
+					break;
+				case TemplateLineParser.OWNER:
+					owner = parser.getValue();
+					break;
+				case TemplateLineParser.URL:
 					try {
-						url = new URL(m.group(1));
+						url = new URL(parser.getValue());
 					} catch (MalformedURLException mul) {
 						// Consumed exception.
 					}
-				}
-
-				m = pkgPattern.matcher(line);
-				if (m.matches()) {
-					packages.add(m.group(1));
-				}
-
-				m = templatePattern.matcher(line);
-				if (m.matches()) {
-					templateName = m.group(1);
-				}
-
-				m = namePanPattern.matcher(line);
-				if (m.matches()) {
-					nameProperty = m.group(1);
+					break;
+				case TemplateLineParser.PKG:
+					packages.add(parser.getValue());
+					break;
+				case TemplateLineParser.TEMPLATE:
+					templateName = parser.getValue();
+					break;
+				case TemplateLineParser.NAME_PROPERTY:
+					nameProperty = parser.getValue();
+					break;
 				}
 
 				line = reader.readLine();
@@ -312,9 +484,22 @@ public class RepositoryTask extends Task {
 			}
 		}
 
+		String pkgDigest = TemplateManifest.digest(packages);
+
+		if (manifest != null) {
+			TemplateManifest.Entry entry = new TemplateManifest.Entry();
+			entry.name = name;
+			entry.owner = owner;
+			entry.url = (url != null) ? url.toExternalForm() : null;
+			entry.templateName = templateName;
+			entry.nameProperty = nameProperty;
+			entry.pkgDigest = pkgDigest;
+			manifest.record(template, entry, Checksums.toHex(md.digest()));
+		}
+
 		if ((name != null) && (owner != null) && (url != null)) {
-			repository = new Repository(template, name, owner, url, packages,
-					templateName, nameProperty, debugTask);
+			repository = new Repository(template, name, owner, url, pkgDigest,
+					templateName, nameProperty, cache, repodata, debugTask);
 		} else if (debugTask) {
 			System.out.println("Template " + template.getAbsolutePath()
 					+ " not recognized as a template");
@@ -330,38 +515,140 @@ public class RepositoryTask extends Task {
 		return repository;
 	}
 
+	/*
+	 * Create a repository from the values recorded in the manifest for an
+	 * unchanged template. Returns null if the template was not recognized as
+	 * a repository template.
+	 */
+	private Repository createRepository(File template,
+			TemplateManifest.Entry entry) {
+
+		if ((entry.name == null) || (entry.owner == null)
+				|| (entry.url == null)) {
+			if (debugTask) {
+				System.out.println("Template " + template.getAbsolutePath()
+						+ " unchanged and not recognized as a template");
+			}
+			return null;
+		}
+
+		try {
+			return new Repository(template, entry.name, entry.owner, new URL(
+					entry.url), entry.pkgDigest, entry.templateName,
+					entry.nameProperty, cache, repodata, debugTask);
+		} catch (MalformedURLException mue) {
+			return null;
+		}
+	}
+
 	/**
-	 * This takes a package name extracted as an HREF attribute checks that it
-	 * has the form of an RPM package and returns a key/value pair. The key is
-	 * the formatted name of the packages; the value is a line appropriate for a
-	 * pan repository template. On any error, this returns null.
+	 * This takes a package name extracted as an HREF attribute and checks that
+	 * it has the form of an RPM package. It returns the name, version (version
+	 * and release) and architecture of the package. On any error, this returns
+	 * null.
+	 * 
+	 * The file name is split by scanning from the right. This accepts the same
+	 * names and returns the same values as the regular expression
+	 * "\s*(.+)-((?:[^-]+)-(?:[^-]+))\.([^\.]+)\.rpm\s*$" (full match).
 	 */
-	private static String[] formatPkg(String pkg) {
-
-		String[] pair = null;
-
-		if (pkg != null) {
-
-			// Split this to get the package name and version.
-			Pattern p = Pattern
-					.compile("\\s*(.+)-((?:[^-]+)-(?:[^-]+))\\.([^\\.]+)\\.rpm\\s*$");
-			Matcher m = p.matcher(pkg);
-			if (m.matches()) {
-				String name = m.group(1);
-				String version = m.group(2);
-				String arch = m.group(3);
-
-				pair = new String[2];
-				pair[0] = name + "-" + version + "-" + arch;
-				pair[1] = "# pkg = " + pair[0] + "\n" + "escape(\"" + pair[0]
-						+ "\"),dict(\"name\",\"" + name + "\",\"version\",\""
-						+ version + "\",\"arch\",\"" + arch + "\")";
+	static String[] parsePkg(String pkg) {
+
+		if (pkg == null) {
+			return null;
+		}
+
+		// Ignore trailing whitespace and the '.rpm' extension.
+		int end = pkg.length();
+		while ((end > 0) && isSpace(pkg.charAt(end - 1))) {
+			end--;
+		}
+		if (!pkg.startsWith(".rpm", end - 4)) {
+			return null;
+		}
+		end -= 4;
+
+		// The architecture follows the last dot.
+		int archStart = pkg.lastIndexOf('.', end - 1) + 1;
+		if ((archStart == 0) || (archStart == end)) {
+			return null;
+		}
+
+		// The release and the version follow the last two dashes.
+		int versionEnd = archStart - 1;
+		int releaseStart = pkg.lastIndexOf('-', versionEnd - 1) + 1;
+		if ((releaseStart == 0) || (releaseStart == versionEnd)) {
+			return null;
+		}
+		int versionStart = pkg.lastIndexOf('-', releaseStart - 2) + 1;
+		if ((versionStart == 0) || (versionStart == releaseStart - 1)) {
+			return null;
+		}
+
+		// The name is what remains once leading whitespace is removed. If
+		// there is nothing left, the last whitespace character is the name.
+		int nameEnd = versionStart - 1;
+		int nameStart = 0;
+		while ((nameStart < nameEnd) && isSpace(pkg.charAt(nameStart))) {
+			nameStart++;
+		}
+		if ((nameStart == nameEnd) && (nameStart > 0)) {
+			nameStart--;
+		}
+		if (nameStart == nameEnd) {
+			return null;
+		}
+		for (int i = nameStart; i < nameEnd; i++) {
+			if (isLineTerminator(pkg.charAt(i))) {
+				return null;
 			}
 		}
 
+		String[] nva = new String[3];
+		nva[0] = pkg.substring(nameStart, nameEnd);
+		nva[1] = pkg.substring(versionStart, versionEnd);
+		nva[2] = pkg.substring(archStart, end);
+
+		return nva;
+	}
+
+	/**
+	 * Returns a key/value pair for the given package. The key is the formatted
+	 * name of the packages; the value is a line appropriate for a pan
+	 * repository template.
+	 */
+	static String[] formatPkg(String name, String version, String arch) {
+
+		StringBuilder sb = new StringBuilder(name.length() + version.length()
+				+ arch.length() + 2);
+		sb.append(name).append('-').append(version).append('-').append(arch);
+		String key = sb.toString();
+
+		sb = new StringBuilder(2 * key.length() + name.length()
+				+ version.length() + arch.length() + 64);
+		sb.append("# pkg = ").append(key).append("\nescape(\"").append(key);
+		sb.append("\"),dict(\"name\",\"").append(name);
+		sb.append("\",\"version\",\"").append(version);
+		sb.append("\",\"arch\",\"").append(arch).append("\")");
+
+		String[] pair = new String[2];
+		pair[0] = key;
+		pair[1] = sb.toString();
+
 		return pair;
 	}
 
+	/* Whitespace as defined by the regular expression \s. */
+	private static boolean isSpace(char c) {
+		return (c == ' ') || (c == '\t') || (c == '\n') || (c == '\u000B')
+				|| (c == '\f') || (c == '\r');
+	}
+
+	/* Line terminators as used by the regular expression '.'. */
+	private static boolean isLineTerminator(char c) {
+		return (c == '\n') || (c == '\r') || (c == '\u0085')
+				|| (c == '\u2028') || (c == '\u2029');
+	}
+
 	/**
 	 * A private class which just encapsulates the name, owner, and URL of a
 	 * repository. Using those values it can then generate a pan template
@@ -381,37 +668,63 @@ public class RepositoryTask extends Task {
 
 		private final URL url;
 
-		private final Set<String> existingPkgs;
+		/* Digest of the package list in the existing template. */
+		private final String existingDigest;
+
+		/* Digest of the package list written to the template. */
+		private String pkgDigest = null;
+
+		private final RepositoryCache cache;
+
+		private final boolean repodata;
 
 		private final boolean debugTask;
 
+		/* The packages found at the repository URL (set by fetch()). */
+		private Map<String, String> pkgs = null;
+
 		/**
 		 * Create a new repository based on the given values.
 		 */
 		public Repository(File template, String name, String owner, URL url,
-				Set<String> packages, String templateName, String nameProperty,
-				boolean debugTask) {
+				String existingDigest, String templateName, String nameProperty,
+				RepositoryCache cache, boolean repodata, boolean debugTask) {
 			this.template = template;
 			this.name = name;
 			this.nameProperty = nameProperty;
 			this.owner = owner;
 			this.templateName = templateName;
 			this.url = url;
-			this.existingPkgs = new TreeSet<String>();
-			this.existingPkgs.addAll(packages);
+			this.existingDigest = existingDigest;
+			this.cache = cache;
+			this.repodata = repodata;
 			this.debugTask = debugTask;
 		}
 
 		/**
-		 * Write the template to the given file.
+		 * Parse the URL for the template and extract the listed packages. This
+		 * doesn't modify any shared state and can be called from a worker
+		 * thread.
+		 */
+		public void fetch() {
+			HashMap<String, String> pkgs = new HashMap<String, String>();
+			parseURL(pkgs);
+			this.pkgs = pkgs;
+		}
+
+		/**
+		 * Write the template to the given file. The packages are fetched first
+		 * if fetch() has not already been called. The file is replaced
+		 * atomically and only if its content changes (the generation date
+		 * excepted).
 		 * 
 		 * Returns true if the template was rebuilt, false otherwise.
 		 */
 		public boolean write() {
 
-			// Parse the URL for the template and extract the listed packages.
-			HashMap<String, String> pkgs = new HashMap<String, String>();
-			parseURL(pkgs);
+			if (pkgs == null) {
+				fetch();
+			}
 
 			// Compare the packages with what already exists. If the packages
 			// are the same, then there is nothing to do with the following
@@ -424,8 +737,10 @@ public class RepositoryTask extends Task {
 			// tag in comments,
 			// In this case, the template is considered malformed and must be rebuilt.
 			
-			Set<String> newPkgs = pkgs.keySet();
-			boolean write = !(newPkgs.equals(existingPkgs))
+			// The package lists are compared through their digests.
+			pkgDigest = TemplateManifest.digest(new TreeSet<String>(pkgs
+					.keySet()));
+			boolean write = !(pkgDigest.equals(existingDigest))
 					|| (templateName == null) || !(name.equals(nameProperty));
 
 			// Write out the template if necessary.
@@ -446,9 +761,9 @@ public class RepositoryTask extends Task {
 				if (contents != null) {
 
 					try {
-			                        OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(template), Charset.forName("utf-8"));
-						writer.write(contents);
-						writer.close();
+						write = FileUpdater.update(template, contents
+								.getBytes(Charset.forName("utf-8")),
+								generatedPattern);
 					} catch (IOException ioe) {
 						throw new BuildException("Error writing template "
 								+ template.getAbsolutePath() + ": ("
@@ -503,34 +818,81 @@ public class RepositoryTask extends Task {
 		 * Parse the HTML document returned by the given URL. This extracts all
 		 * of the anchors looking for ones which reference RPM packages. This is
 		 * done by the file extension.
+		 * 
+		 * If a cache is configured and the URL is an HTTP one, a conditional
+		 * request is sent using the validators saved by the previous run. If
+		 * the document hasn't changed, the cached package list is used instead.
 		 */
 		private void parseURL(Map<String, String> pkgs) {
 
-			try {
+			if (repodata && parseRepodata(pkgs)) {
+				return;
+			}
 
-				// Get an input stream for the URL.
-				InputStreamReader is = new InputStreamReader(url.openStream(), Charset.forName("utf-8"));
+			try {
 
-				// Create a character buffer for holding the data while
-				// transferring it to a string buffer.
-				int bufferSize = 1024;
-				char[] buffer = new char[bufferSize];
-				StringBuilder sb = new StringBuilder(2 * bufferSize);
+				URLConnection connection = url.openConnection();
+				HttpURLConnection http = (connection instanceof HttpURLConnection) ? (HttpURLConnection) connection
+						: null;
+
+				// Add the validators of the cached listing, if any.
+				RepositoryCache.Entry cached = null;
+				if ((cache != null) && (http != null)) {
+					cached = cache.load(url);
+					if (cached != null) {
+						if (cached.etag != null) {
+							http.setRequestProperty("If-None-Match", cached.etag);
+						}
+						if (cached.lastModified != null) {
+							http.setRequestProperty("If-Modified-Since",
+									cached.lastModified);
+						}
+					}
+				}
 
-				for (int nchars = is.read(buffer, 0, bufferSize); nchars >= 0; nchars = is
-						.read(buffer, 0, bufferSize)) {
-					sb.append(buffer, 0, nchars);
+				if ((cached != null)
+						&& (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+					if (debugTask) {
+						System.out.println(url
+								+ " not modified: using cached package list");
+					}
+					for (String[] nva : cached.packages) {
+						String[] pkg = formatPkg(nva[0], nva[1], nva[2]);
+						pkgs.put(pkg[0], pkg[1]);
+					}
+					return;
 				}
 
-				is.close();
+				// Get an input stream for the URL.
+				InputStreamReader is = new InputStreamReader(connection.getInputStream(), Charset.forName("utf-8"));
 
-				// Now loop over all anchors in the file, extracting the
-				// necessary info.
-				Matcher matcher = hrefPattern.matcher(sb);
-				while (matcher.find()) {
-					String[] pkg = formatPkg(matcher.group(1));
-					if (pkg != null)
-						pkgs.put(pkg[0], pkg[1]);
+				// Now loop over all anchors in the document as it is read,
+				// extracting the necessary info.
+				RepositoryCache.Entry entry = new RepositoryCache.Entry();
+				try {
+					HrefScanner scanner = new HrefScanner(is);
+					for (String href = scanner.next(); href != null; href = scanner
+							.next()) {
+						String[] nva = parsePkg(href);
+						if (nva != null) {
+							String[] pkg = formatPkg(nva[0], nva[1], nva[2]);
+							if (pkgs.put(pkg[0], pkg[1]) == null) {
+								entry.packages.add(nva);
+							}
+						}
+					}
+				} finally {
+					is.close();
+				}
+
+				// Save the package list with the validators returned by the
+				// server for the next run.
+				if ((cache != null) && (http != null)) {
+					entry.etag = http.getHeaderField("ETag");
+					entry.lastModified = http.getHeaderField("Last-Modified");
+					if ((entry.etag != null) || (entry.lastModified != null)) {
+						cache.store(url, entry);
+					}
 				}
 
 			} catch (java.io.IOException ioe) {
@@ -540,6 +902,90 @@ public class RepositoryTask extends Task {
 
 		}
 
+		/**
+		 * Read the package list from the yum metadata of the repository. If
+		 * the checksum of the primary package list is the same as in the
+		 * cache, the cached package list is used.
+		 * 
+		 * Returns false if the repository has no usable metadata, including
+		 * when the metadata can't be read or parsed: the HTML listing is then
+		 * used instead.
+		 */
+		private boolean parseRepodata(Map<String, String> pkgs) {
+
+			Repodata metadata = null;
+			try {
+
+				metadata = Repodata.read(url);
+				if (metadata == null) {
+					if (debugTask) {
+						System.out.println(url
+								+ ": unsupported repodata, using HTML listing");
+					}
+					return false;
+				}
+
+				RepositoryCache.Entry cached = (cache != null) ? cache
+						.load(url) : null;
+				String signature = metadata.getSignature();
+
+				RepositoryCache.Entry entry;
+				if ((cached != null) && (signature != null)
+						&& signature.equals(cached.repodata)) {
+					if (debugTask) {
+						System.out.println(url
+								+ " not modified: using cached package list");
+					}
+					entry = cached;
+				} else {
+					entry = new RepositoryCache.Entry();
+					entry.repodata = signature;
+					metadata.readPackages(entry.packages);
+					if ((cache != null) && (signature != null)) {
+						cache.store(url, entry);
+					}
+				}
+
+				for (String[] nva : entry.packages) {
+					String[] pkg = formatPkg(nva[0], nva[1], nva[2]);
+					pkgs.put(pkg[0], pkg[1]);
+				}
+
+			} catch (java.io.FileNotFoundException fnfe) {
+				if (debugTask) {
+					System.out.println(url + ": no repodata, using HTML listing");
+				}
+				return false;
+			} catch (java.io.IOException ioe) {
+				System.err.println("Error getting repodata from URL "
+						+ ((metadata != null) ? metadata : url) + ": ("
+						+ ioe.toString() + "), using HTML listing");
+				return false;
+			} catch (SAXException se) {
+				System.err.println("Error parsing repodata of URL "
+						+ ((metadata != null) ? metadata : url) + ": ("
+						+ se.toString() + "), using HTML listing");
+				return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Returns the manifest entry describing the template written by
+		 * write().
+		 */
+		public TemplateManifest.Entry getManifestEntry() {
+			TemplateManifest.Entry entry = new TemplateManifest.Entry();
+			entry.name = name;
+			entry.owner = owner;
+			entry.url = url.toExternalForm();
+			entry.templateName = templateName;
+			entry.nameProperty = name;
+			entry.pkgDigest = pkgDigest;
+			return entry;
+		}
+
 		@Override
 		public String toString() {
 			return template.getAbsolutePath();
@@ -7,23 +7,42 @@ ${author-info}
 package org.quattor.ant;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
 import org.apache.tools.ant.Task;
 import org.tmatesoft.svn.core.SVNDepth;
+import org.tmatesoft.svn.core.SVNDirEntry;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNURL;
-import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
 import org.tmatesoft.svn.core.internal.io.dav.DAVRepositoryFactory;
 import org.tmatesoft.svn.core.internal.io.svn.SVNRepositoryFactoryImpl;
-import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.wc.ISVNStatusHandler;
 import org.tmatesoft.svn.core.wc.SVNInfo;
 import org.tmatesoft.svn.core.wc.SVNRevision;
+import org.tmatesoft.svn.core.wc.SVNStatus;
 import org.tmatesoft.svn.core.wc.SVNUpdateClient;
 import org.tmatesoft.svn.core.wc.SVNWCClient;
-import org.tmatesoft.svn.core.wc.SVNWCUtil;
 
 /**
  * This task is intended to maintain a working copy as a cache on the Quattor
@@ -35,6 +54,8 @@ import org.tmatesoft.svn.core.wc.SVNWCUtil;
  */
 public class SvnCacheTask extends Task {
 
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
         /*
          *  scdb-ant-utils version
          */
@@ -68,6 +89,42 @@ public class SvnCacheTask extends Task {
 	/* The password to access the repository. */
 	private String password = null;
 
+	/* The information about the existing working copy (null if none). */
+	private SVNInfo wcInfo = null;
+
+	/* Export the tag instead of maintaining a working copy. */
+	private boolean export = false;
+
+	/*
+	 * The action on a double-buffered cache: prepare, activate or deploy (null
+	 * for a single working copy).
+	 */
+	private String action = null;
+
+	/* The number of working copies in the pool (0 for a single copy). */
+	private int poolSize = 0;
+
+	/* Time after which an unused pooled copy is removed, in hours (0 for never). */
+	private int maxIdle = 0;
+
+	/* The property set to the path of the leased pooled copy. */
+	private String leaseProperty = "svncache.path";
+
+	/* The paths to check out in a sparse working copy (empty for all). */
+	private List<PathElement> includes = new ArrayList<PathElement>();
+
+	/* The paths to leave out of the working copy. */
+	private List<PathElement> excludes = new ArrayList<PathElement>();
+
+	/*
+	 * The id of the project reference holding an SVN session shared with other
+	 * tasks (null for a session per execution).
+	 */
+	private String sessionRef = null;
+
+	/* The SVN session used for all of the operations of an execution. */
+	private SvnSession session = null;
+
 	/**
 	 * Give the username that will be used to access the subversion repository.
 	 * 
@@ -144,6 +201,126 @@ public class SvnCacheTask extends Task {
 		this.wcPath = workspacePath;
 	}
 
+	/**
+	 * Setting this flag will maintain the cache as an export of the tag (with
+	 * no .svn metadata) rather than as a working copy. Each revision of the
+	 * tag is exported to a staging directory next to the workspacePath (e.g.
+	 * cache-1234 for cache) and the workspacePath is a symbolic link to the
+	 * current one, replaced atomically once the export is complete.
+	 * 
+	 * @param export
+	 *            flag to export the tag
+	 */
+	public void setExport(boolean export) {
+		this.export = export;
+	}
+
+	/**
+	 * Use a double-buffered cache: two working copies (e.g. cache.0 and
+	 * cache.1 for cache) with the workspacePath being a symbolic link to the
+	 * active one. The action is one of:
+	 * <ul>
+	 * <li>prepare: switch or update the standby copy to the tag, without
+	 * affecting the active copy;</li>
+	 * <li>activate: atomically point the workspacePath to the standby copy,
+	 * which must have been completely prepared for the last revision of the
+	 * tag (recorded in a marker file next to it, e.g. cache.1.ready); the
+	 * previously active copy becomes the standby copy;</li>
+	 * <li>deploy: prepare then activate.</li>
+	 * </ul>
+	 * An existing working copy at workspacePath becomes the first copy.
+	 * 
+	 * @param action
+	 *            prepare, activate or deploy
+	 */
+	public void setAction(String action) {
+		if (!"prepare".equals(action) && !"activate".equals(action)
+				&& !"deploy".equals(action)) {
+			throw new BuildException(
+					"action must be 'prepare', 'activate' or 'deploy'");
+		}
+		this.action = action;
+	}
+
+	/**
+	 * Use a pool of working copies for concurrent builds of different tags.
+	 * The workspacePath is then a directory holding up to poolSize working
+	 * copies (0, 1, ...), each leased with a lock on a file next to it (0.lock,
+	 * ...) until the end of the build. The copy leased is, in order of
+	 * preference, a free copy already on the tag, a new copy if the pool isn't
+	 * full, else the least recently used free copy. Its path is stored in the
+	 * property given by leaseProperty.
+	 * 
+	 * @param poolSize
+	 *            maximum number of working copies
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize = (poolSize > 0) ? poolSize : 0;
+	}
+
+	/**
+	 * Remove the pooled copies which have not been used for the given number
+	 * of hours when a copy must be recycled: the pool is full and no copy is
+	 * already on the tag. The default (0) keeps them.
+	 * 
+	 * @param maxIdle
+	 *            idle time in hours
+	 */
+	public void setMaxIdle(int maxIdle) {
+		this.maxIdle = (maxIdle > 0) ? maxIdle : 0;
+	}
+
+	/**
+	 * Name of the property set to the path of the pooled copy leased for the
+	 * build. The default is svncache.path. The task fails if the property is
+	 * already set, so each lease in a build needs its own property.
+	 * 
+	 * @param leaseProperty
+	 *            property name
+	 */
+	public void setLeaseProperty(String leaseProperty) {
+		this.leaseProperty = leaseProperty;
+	}
+
+	/**
+	 * Share the SVN client and its repository connections with the other
+	 * tasks of the build using the same reference id. The shared session is
+	 * closed at the end of the build instead of at the end of the task.
+	 * 
+	 * @param sessionRef
+	 *            project reference id
+	 */
+	public void setSessionRef(String sessionRef) {
+		this.sessionRef = sessionRef;
+	}
+
+	/**
+	 * Support nested include elements. If any is given, the working copy is
+	 * sparse: the top-level directory is checked out with an empty depth and
+	 * only the included paths (relative to the tag) are checked out fully.
+	 * In an existing cache (a full working copy or one with removed
+	 * includes), the other paths are excluded and the included trees kept.
+	 * 
+	 * @return the new path element
+	 */
+	public PathElement createInclude() {
+		PathElement include = new PathElement();
+		includes.add(include);
+		return include;
+	}
+
+	/**
+	 * Support nested exclude elements. The excluded paths (relative to the
+	 * tag) are removed from the working copy and no longer updated.
+	 * 
+	 * @return the new path element
+	 */
+	public PathElement createExclude() {
+		PathElement exclude = new PathElement();
+		excludes.add(exclude);
+		return exclude;
+	}
+
 	/*
 	 * Method used by ant to execute this task.
 	 */
@@ -161,16 +338,399 @@ public class SvnCacheTask extends Task {
 			throw new BuildException("username and password must be set");
 		}
 
+		// Use a single client and set of connections for all of the phases.
+		if (sessionRef != null) {
+			session = SvnSession.getShared(getProject(), sessionRef, username,
+					password);
+		} else {
+			session = new SvnSession(username, password);
+		}
+		try {
+			refreshCache();
+		} finally {
+			if (sessionRef == null) {
+				session.report();
+				session.dispose();
+			}
+			session = null;
+		}
+	}
+
+	/**
+	 * Refresh the cache in the configured mode.
+	 */
+	private void refreshCache() {
+
+		// The export mode manages the workspacePath itself.
+		if (export) {
+			if (wcPath == null) {
+				throw new BuildException("workspacePath is not specified");
+			}
+			if ((includes.size() > 0) || (excludes.size() > 0)) {
+				throw new BuildException("include and exclude elements are not supported in export mode");
+			}
+			if ((action != null) || (poolSize > 0)) {
+				throw new BuildException("action and poolSize are not supported in export mode");
+			}
+			exportCache();
+			return;
+		}
+
+		if (poolSize > 0) {
+			if (action != null) {
+				throw new BuildException("action is not supported with poolSize");
+			}
+			poolCache();
+			return;
+		}
+
+		if (action != null) {
+			if (wcPath == null) {
+				throw new BuildException("workspacePath is not specified");
+			}
+			doubleBufferCache();
+			return;
+		}
+
+		refreshWorkingCopy();
+	}
+
+	/**
+	 * Switch, update or checkout the working copy at workspacePath.
+	 */
+	private void refreshWorkingCopy() {
+
 		// Verify that the given workspacePath is OK.
 		verifyWorkspacePath();
 
 		// Determine if the workspace can be switched. If so, get the URL.
+		long start = System.currentTimeMillis();
 		boolean switchOk = switchable();
+		reportTime("working copy info", start);
 
 		// Go ahead and try to switch or checkout the cache.
 		updateCache(switchOk);
 	}
 
+	/**
+	 * Prepare and/or activate the standby copy of a double-buffered cache.
+	 */
+	private void doubleBufferCache() {
+
+		File parent = wcPath.getAbsoluteFile().getParentFile();
+		String name = wcPath.getName();
+		Path link = wcPath.toPath();
+		String[] copies = { name + ".0", name + ".1" };
+
+		// Find the active copy. An existing working copy becomes the first
+		// copy.
+		int active = -1;
+		try {
+			if (Files.isSymbolicLink(link)) {
+				String target = Files.readSymbolicLink(link).toString();
+				active = target.equals(copies[0]) ? 0 : (target
+						.equals(copies[1]) ? 1 : -1);
+				if (active < 0) {
+					throw new BuildException("workspacePath (" + wcPath
+							+ ") is not a link to " + copies[0] + " or "
+							+ copies[1]);
+				}
+			} else if (Files.isDirectory(link, LinkOption.NOFOLLOW_LINKS)) {
+				System.out.println("Moving existing working copy to "
+						+ copies[0]);
+				Files.move(link, new File(parent, copies[0]).toPath());
+				replaceLink(parent, name, copies[0]);
+				active = 0;
+			}
+		} catch (IOException ioe) {
+			throw new BuildException("Error reading cache link " + wcPath
+					+ ": (" + ioe.toString() + ")");
+		}
+		int standby = (active == 0) ? 1 : 0;
+		File standbyPath = new File(parent, copies[standby]);
+
+		// The marker is only written once the standby copy has been fully
+		// prepared: a failed or interrupted prepare leaves no marker.
+		File ready = new File(parent, copies[standby] + ".ready");
+		SVNURL tagUrl = getTagUrl();
+
+		if ("prepare".equals(action) || "deploy".equals(action)) {
+			System.out.println("Preparing standby copy: " + standbyPath);
+			if (ready.exists() && !ready.delete()) {
+				throw new BuildException("cannot remove marker: " + ready);
+			}
+			File cachePath = wcPath;
+			wcPath = standbyPath;
+			try {
+				refreshWorkingCopy();
+			} finally {
+				wcPath = cachePath;
+			}
+			try {
+				FileUpdater.write(ready, (tagUrl.toString() + "@"
+						+ getRevision(standbyPath) + "\n").getBytes(UTF8));
+			} catch (IOException ioe) {
+				throw new BuildException("Error writing marker " + ready
+						+ ": (" + ioe.toString() + ")");
+			}
+		}
+
+		if ("activate".equals(action) || "deploy".equals(action)) {
+
+			// Only a copy completely prepared for the last revision of the tag
+			// can be activated.
+			String prepared = null;
+			try {
+				prepared = new String(Files.readAllBytes(ready.toPath()), UTF8)
+						.trim();
+			} catch (IOException consumed) {
+			}
+			long revision = getRevision(standbyPath);
+			if (!(tagUrl.toString() + "@" + revision).equals(prepared)) {
+				throw new BuildException("standby copy (" + standbyPath
+						+ ") has not been prepared for " + tagUrl);
+			}
+			long lastChanged = getLastChangedRevision(tagUrl);
+			if ((lastChanged < 0) || (revision < lastChanged)) {
+				throw new BuildException("standby copy (" + standbyPath
+						+ ") is at revision " + revision + ", not at the "
+						+ "last change of " + tagUrl + " (" + lastChanged
+						+ ")");
+			}
+
+			long start = System.currentTimeMillis();
+			try {
+				replaceLink(parent, name, copies[standby]);
+			} catch (IOException ioe) {
+				throw new BuildException("Error updating cache link " + wcPath
+						+ ": (" + ioe.toString() + ")");
+			}
+			reportTime("activation", start);
+			System.out.println("Activated: \n    " + wcPath + " -> "
+					+ copies[standby]);
+		}
+	}
+
+	/*
+	 * Collect the versioned paths of the given directory of a sparse working
+	 * copy other than the included ones and their parent directories.
+	 */
+	private void getOtherPaths(File dir, String prefix, List<File> others) {
+
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+		SVNWCClient wc = session.getWCClient();
+		for (String name : names) {
+			if (name.equals(".svn")) {
+				continue;
+			}
+			String path = prefix + name;
+			boolean parent = false;
+			boolean included = false;
+			for (PathElement include : includes) {
+				String p = include.getPath();
+				included |= p.equals(path);
+				parent |= p.startsWith(path + "/");
+			}
+			if (included) {
+				continue;
+			}
+			if (parent) {
+				getOtherPaths(new File(dir, name), path + "/", others);
+				continue;
+			}
+
+			// Unversioned files can't be excluded: ignore them.
+			try {
+				wc.doInfo(new File(dir, name), SVNRevision.WORKING);
+				others.add(new File(dir, name));
+			} catch (SVNException consumed) {
+			}
+		}
+	}
+
+	/*
+	 * Returns the revision of the root of a working copy (-1 if it isn't a
+	 * working copy).
+	 */
+	private long getRevision(File copy) {
+		try {
+			SVNWCClient wc = session.getWCClient();
+			return wc.doInfo(copy, SVNRevision.WORKING).getRevision()
+					.getNumber();
+		} catch (SVNException se) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Lease a working copy from the pool, bring it to the tag and publish its
+	 * path in the lease property. The lease is released at the end of the
+	 * build.
+	 */
+	private void poolCache() {
+
+		// A property can only be set once: each lease in a build needs its
+		// own property.
+		if (getProject().getProperty(leaseProperty) != null) {
+			throw new BuildException("property " + leaseProperty
+					+ " is already set: use another leaseProperty");
+		}
+
+		// Verify that the pool directory is OK.
+		verifyWorkspacePath();
+		File root = wcPath;
+		SVNURL tagUrl = getTagUrl();
+
+		// Try to lock all of the copies. The locks are held by other builds
+		// for the copies in use.
+		FileChannel[] channels = new FileChannel[poolSize];
+		FileLock[] locks = new FileLock[poolSize];
+		int chosen = -1;
+		try {
+			int empty = -1;
+			int lru = -1;
+			List<Integer> idle = new ArrayList<Integer>();
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < poolSize; i++) {
+				File lockFile = new File(root, i + ".lock");
+				channels[i] = new RandomAccessFile(lockFile, "rw").getChannel();
+				try {
+					locks[i] = channels[i].tryLock();
+				} catch (OverlappingFileLockException ofle) {
+					locks[i] = null;
+				}
+				if (locks[i] == null) {
+					continue;
+				}
+
+				File copy = new File(root, Integer.toString(i));
+				if (!copy.exists()) {
+					if (empty < 0) {
+						empty = i;
+					}
+					continue;
+				}
+
+				// A copy already on the tag is preferred, however long it has
+				// been idle.
+				if (chosen < 0) {
+					SVNURL url = null;
+					try {
+						SVNWCClient wc = session.getWCClient();
+						url = wc.doInfo(copy, SVNRevision.WORKING).getURL();
+					} catch (SVNException consumed) {
+					}
+					if (tagUrl.equals(url)) {
+						chosen = i;
+						continue;
+					}
+				}
+
+				if ((maxIdle > 0)
+						&& (now - lockFile.lastModified() > maxIdle * 3600000L)) {
+					idle.add(i);
+				}
+				if ((lru < 0)
+						|| (lockFile.lastModified() < new File(root, lru
+								+ ".lock").lastModified())) {
+					lru = i;
+				}
+			}
+			if (chosen < 0) {
+				chosen = (empty >= 0) ? empty : lru;
+			}
+			if (chosen < 0) {
+				throw new BuildException("all " + poolSize
+						+ " working copies in " + root + " are in use");
+			}
+
+			// When the pool is full and no copy is on the tag, the least
+			// recently used copy is switched and the other copies idle for
+			// too long are removed.
+			if ((chosen == lru) && (empty < 0)) {
+				for (int i : idle) {
+					if (i != chosen) {
+						File copy = new File(root, Integer.toString(i));
+						System.out.println("Removing idle copy: " + copy);
+						deleteTree(copy.toPath());
+					}
+				}
+			}
+
+		} catch (IOException ioe) {
+			throw new BuildException("Error locking pool " + root + ": ("
+					+ ioe.toString() + ")");
+		} finally {
+			// Release all of the other copies.
+			for (int i = 0; i < poolSize; i++) {
+				if ((i != chosen) && (channels[i] != null)) {
+					try {
+						channels[i].close();
+					} catch (IOException consumed) {
+					}
+				}
+			}
+		}
+
+		// Hold the lease until the end of the build.
+		final FileChannel lease = channels[chosen];
+		getProject().addBuildListener(new BuildListener() {
+			public void buildFinished(BuildEvent event) {
+				try {
+					lease.close();
+				} catch (IOException consumed) {
+				}
+			}
+
+			public void buildStarted(BuildEvent event) {
+			}
+
+			public void targetStarted(BuildEvent event) {
+			}
+
+			public void targetFinished(BuildEvent event) {
+			}
+
+			public void taskStarted(BuildEvent event) {
+			}
+
+			public void taskFinished(BuildEvent event) {
+			}
+
+			public void messageLogged(BuildEvent event) {
+			}
+		});
+		new File(root, chosen + ".lock").setLastModified(System
+				.currentTimeMillis());
+
+		File copy = new File(root, Integer.toString(chosen));
+		System.out.println("Leased pooled copy: " + copy);
+		wcPath = copy;
+		try {
+			refreshWorkingCopy();
+		} finally {
+			wcPath = root;
+		}
+		getProject().setNewProperty(leaseProperty, copy.getAbsolutePath());
+	}
+
+	/**
+	 * Atomically replace the symbolic link with the given name in the parent
+	 * directory by a link to the given (relative) target.
+	 */
+	private static void replaceLink(File parent, String name, String target)
+			throws IOException {
+		Path tmpLink = new File(parent, "." + name + ".link").toPath();
+		Files.deleteIfExists(tmpLink);
+		Files.createSymbolicLink(tmpLink, Paths.get(target));
+		Files.move(tmpLink, new File(parent, name).toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
 	/**
 	 * Do a series of checks to make sure that the given workspacePath is a
 	 * writeable directory (possibly creating it).
@@ -212,16 +772,17 @@ public class SvnCacheTask extends Task {
 	 */
 	private boolean switchable() {
 
-		// Create status, copy, and WC (working copy) clients.
-		SVNClientManager manager = SVNClientManager.newInstance();
-		SVNWCClient wc = manager.getWCClient();
+		// Get a WC (working copy) client.
+		SVNWCClient wc = session.getWCClient();
 
 		// Retrieve the URL for the repository.
 		String url = null;
+		wcInfo = null;
 		try {
 			SVNInfo info = wc.doInfo(wcPath, SVNRevision.WORKING);
 			SVNURL srcUrl = info.getURL();
 			url = srcUrl.toString();
+			wcInfo = info;
 		} catch (SVNException consumed) {
 		}
 
@@ -240,36 +801,94 @@ public class SvnCacheTask extends Task {
 
 	private void updateCache(boolean switchOk) {
 
-		// Create an update client to either switch the repository to checkout a
+		// Get an update client to either switch the repository to checkout a
 		// fresh copy.
-		ISVNAuthenticationManager authManager = SVNWCUtil
-				.createDefaultAuthenticationManager(username, password);
-		SVNUpdateClient updater = new SVNUpdateClient(authManager, null);
+		SVNUpdateClient updater = session.getUpdateClient();
 
-		// Create the tag URL relative to the repository URL. Append "tags/" to
-		// the tag, unless the tag name is trunk.
-		SVNURL tagUrl = null;
-		try {
-			String tagname = ("trunk".equals(tag)) ? "trunk" : "tags/" + tag;
-			tagUrl = repositoryUrl.appendPath(tagname, true);
-		} catch (SVNException se) {
-			throw new BuildException("can't create tag URL: " + se.getMessage());
+		SVNURL tagUrl = getTagUrl();
+
+		// The paths of a sparse working copy other than the included ones
+		// (e.g. in a full working copy or removed includes) are excluded,
+		// even if it is already on the tag. The included trees are kept.
+		boolean sparse = (includes.size() > 0);
+		if (sparse && switchOk) {
+			List<File> others = new ArrayList<File>();
+			getOtherPaths(wcPath, "", others);
+			try {
+				for (File other : others) {
+					System.out.println("Excluding: " + other);
+					updater.doUpdate(other, SVNRevision.HEAD,
+							SVNDepth.EXCLUDE, false, true);
+				}
+			} catch (SVNException se) {
+				throw new BuildException("can't set sparse depths of "
+						+ wcPath + ": " + se.getMessage());
+			}
+		}
+
+		// If the working copy is already on the tag, there is no need for a
+		// full switch: do nothing if all its entries are at the same revision,
+		// at or after the last change of the tag, else just update it. The
+		// root revision alone isn't enough: an interrupted update leaves a
+		// mixed-revision working copy with the root at the new revision.
+		boolean updateOnly = false;
+		if (switchOk && tagUrl.equals(wcInfo.getURL())) {
+			long start = System.currentTimeMillis();
+			long lastChanged = getLastChangedRevision(tagUrl);
+			reportTime("repository check", start);
+			long[] range = { -1, -1 };
+			if ((lastChanged >= 0)
+					&& (wcInfo.getRevision().getNumber() >= lastChanged)) {
+				start = System.currentTimeMillis();
+				range = getRevisionRange(wcPath);
+				reportTime("local status", start);
+			}
+			if ((lastChanged >= 0) && (range[0] >= lastChanged)
+					&& (range[0] == range[1])) {
+				System.out.println("Cache is up-to-date: \n    " + wcPath
+						+ "\n    " + tagUrl.toString() + "@" + range[0]);
+				try {
+					applyDepths(updater);
+				} catch (SVNException se) {
+					throw new BuildException("can't set sparse depths of "
+							+ wcPath + ": " + se.getMessage());
+				}
+				return;
+			}
+			updateOnly = (lastChanged >= 0);
 		}
 
+		// A sparse working copy is updated and switched at its current depths
+		// (UNKNOWN): only the included trees are transferred and crawled.
+		SVNDepth depth = getUpdateDepth();
+
+		long start = System.currentTimeMillis();
 		try {
-			if (switchOk) {
+			if (updateOnly) {
+				System.out.println("Updating: \n    " + wcPath + "\n    "
+						+ tagUrl.toString());
+				updater.doUpdate(wcPath, SVNRevision.HEAD, depth,
+						false, false);
+				reportTime("update", start);
+			} else if (switchOk) {
 				System.out.println("Switching: \n    " + wcPath + "\n    "
 						+ tagUrl.toString());
 				updater.doSwitch(wcPath, tagUrl, SVNRevision.HEAD,
-						SVNRevision.HEAD, SVNDepth.INFINITY, false, false);
+						SVNRevision.HEAD, depth, false, false);
+				reportTime("switch", start);
 			} else {
 				System.out.println("Checking out: \n    " + wcPath + "\n    "
 						+ tagUrl.toString());
 				updater.doCheckout(tagUrl, wcPath, SVNRevision.HEAD,
-						SVNRevision.HEAD, SVNDepth.INFINITY, false);
+						SVNRevision.HEAD, sparse ? SVNDepth.EMPTY
+								: SVNDepth.INFINITY, false);
+				reportTime("checkout", start);
 			}
+			applyDepths(updater);
 		} catch (SVNException se) {
-			if (!recover(updater, tagUrl)) {
+			boolean recovered = recover(updater, tagUrl);
+			reportTime("recovery", start);
+			if (!recovered) {
 				throw new BuildException("switch or checkout failed: " + tagUrl
 						+ " " + wcPath);
 			}
@@ -277,6 +896,289 @@ public class SvnCacheTask extends Task {
 
 	}
 
+	/**
+	 * Returns the lowest and highest revisions of the entries of the working
+	 * copy, from its local status. Both are -1 if the status can't be read.
+	 */
+	private long[] getRevisionRange(File copy) {
+		final long[] range = { -1, -1 };
+		ISVNStatusHandler handler = new ISVNStatusHandler() {
+			public void handleStatus(SVNStatus status) {
+				SVNRevision revision = status.getRevision();
+				if ((revision == null) || (revision.getNumber() < 0)) {
+					return;
+				}
+				long number = revision.getNumber();
+				if ((range[0] < 0) || (number < range[0])) {
+					range[0] = number;
+				}
+				if (number > range[1]) {
+					range[1] = number;
+				}
+			}
+		};
+		try {
+			session.getStatusClient().doStatus(copy, SVNRevision.WORKING,
+					SVNDepth.INFINITY, false, true, false, false, handler,
+					null);
+		} catch (SVNException se) {
+			System.err.println("Error reading status of " + copy + ": "
+					+ se.getMessage());
+			range[0] = -1;
+			range[1] = -1;
+		}
+		return range;
+	}
+
+	/**
+	 * The depth used to update the whole working copy: its current depths if
+	 * it is sparse or has excluded paths, else the full tree.
+	 */
+	private SVNDepth getUpdateDepth() {
+		return ((includes.size() > 0) || (excludes.size() > 0)) ? SVNDepth.UNKNOWN
+				: SVNDepth.INFINITY;
+	}
+
+	/**
+	 * Set the depth of the included and excluded paths of the working copy.
+	 * The paths already at the right depth are left alone, so this is cheap
+	 * once the working copy has the requested layout.
+	 */
+	private void applyDepths(SVNUpdateClient updater) throws SVNException {
+
+		if ((includes.size() == 0) && (excludes.size() == 0)) {
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		SVNWCClient wc = session.getWCClient();
+
+		for (PathElement include : includes) {
+			String path = include.getPath();
+
+			// The parent directories are added with an empty depth.
+			int i = path.indexOf('/');
+			while (i > 0) {
+				File parent = new File(wcPath, path.substring(0, i));
+				if (!parent.exists()) {
+					updater.doUpdate(parent, SVNRevision.HEAD, SVNDepth.EMPTY,
+							false, true);
+				}
+				i = path.indexOf('/', i + 1);
+			}
+
+			File target = new File(wcPath, path);
+			if (target.exists()
+					&& (wc.doInfo(target, SVNRevision.WORKING).getDepth() == SVNDepth.INFINITY)) {
+				continue;
+			}
+			System.out.println("Including: " + path);
+			updater.doUpdate(target, SVNRevision.HEAD, SVNDepth.INFINITY,
+					false, true);
+		}
+
+		for (PathElement exclude : excludes) {
+			File target = new File(wcPath, exclude.getPath());
+			if (target.exists()) {
+				System.out.println("Excluding: " + exclude.getPath());
+				updater.doUpdate(target, SVNRevision.HEAD, SVNDepth.EXCLUDE,
+						false, true);
+			}
+		}
+
+		reportTime("sparse depths", start);
+	}
+
+	/**
+	 * Create the tag URL relative to the repository URL. Append "tags/" to the
+	 * tag, unless the tag name is trunk.
+	 */
+	private SVNURL getTagUrl() {
+		try {
+			String tagname = ("trunk".equals(tag)) ? "trunk" : "tags/" + tag;
+			return repositoryUrl.appendPath(tagname, true);
+		} catch (SVNException se) {
+			throw new BuildException("can't create tag URL: " + se.getMessage());
+		}
+	}
+
+	/**
+	 * Refresh the cache in export mode: export the last revision of the tag to
+	 * a new staging directory, point the workspacePath link to it and remove
+	 * the older staging directories. Readers of the workspacePath either see
+	 * the previous tree or the new one, never a partial export.
+	 */
+	private void exportCache() {
+
+		SVNURL tagUrl = getTagUrl();
+
+		File parent = wcPath.getAbsoluteFile().getParentFile();
+		String name = wcPath.getName();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new BuildException("cannot create directory: " + parent);
+		}
+
+		long start = System.currentTimeMillis();
+		long revision = getLastChangedRevision(tagUrl);
+		reportTime("repository check", start);
+		if (revision < 0) {
+			throw new BuildException("can't determine revision of " + tagUrl);
+		}
+
+		String stagingName = name + "-" + revision;
+		File staging = new File(parent, stagingName);
+		Path link = wcPath.toPath();
+		String previousName = null;
+
+		try {
+			if (Files.isSymbolicLink(link)
+					&& stagingName.equals(Files.readSymbolicLink(link)
+							.toString()) && staging.isDirectory()) {
+				System.out.println("Cache is up-to-date: \n    " + wcPath
+						+ "\n    " + tagUrl.toString() + "@" + revision);
+				return;
+			}
+
+			// Export to a temporary directory which is renamed once complete.
+			if (!staging.isDirectory()) {
+				File tmp = new File(parent, stagingName + ".tmp");
+				deleteTree(tmp.toPath());
+				System.out.println("Exporting: \n    " + staging + "\n    "
+						+ tagUrl.toString() + "@" + revision);
+				start = System.currentTimeMillis();
+				try {
+					SVNUpdateClient updater = session.getUpdateClient();
+					updater.doExport(tagUrl, tmp, SVNRevision.HEAD,
+							SVNRevision.create(revision), null, true,
+							SVNDepth.INFINITY);
+				} catch (SVNException se) {
+					deleteTree(tmp.toPath());
+					throw new BuildException("export failed: " + tagUrl + " "
+							+ tmp + " (" + se.getMessage() + ")");
+				}
+				reportTime("export", start);
+				Files.move(tmp.toPath(), staging.toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+
+			// The previous export is kept for the readers still using it.
+			if (Files.isSymbolicLink(link)) {
+				previousName = Files.readSymbolicLink(link).toString();
+			}
+
+			// A working copy left by the normal mode can't be replaced
+			// atomically: move it out of the way first.
+			if (Files.isDirectory(link, LinkOption.NOFOLLOW_LINKS)) {
+				File old = new File(parent, name + "-wc");
+				System.out.println("Moving existing working copy to " + old);
+				Files.move(link, old.toPath());
+			}
+
+			// Replace the link atomically.
+			start = System.currentTimeMillis();
+			replaceLink(parent, name, stagingName);
+			reportTime("activation", start);
+			System.out.println("Activated: \n    " + wcPath + " -> "
+					+ stagingName);
+
+		} catch (IOException ioe) {
+			throw new BuildException("Error updating cache " + wcPath + ": ("
+					+ ioe.toString() + ")");
+		}
+
+		// Remove the older exports, except the previous one. The directories
+		// which aren't exports of this cache or which are being written are
+		// left alone.
+		start = System.currentTimeMillis();
+		File[] files = parent.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String n = f.getName();
+				if (n.startsWith(name + "-") && !n.equals(stagingName)
+						&& !n.equals(previousName)
+						&& isRevision(n.substring(name.length() + 1))) {
+					try {
+						deleteTree(f.toPath());
+					} catch (IOException ioe) {
+						System.err.println("can't remove " + f + ": "
+								+ ioe.getMessage());
+					}
+				}
+			}
+		}
+		reportTime("cleanup", start);
+	}
+
+	private static boolean isRevision(String s) {
+		if (s.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if ((s.charAt(i) < '0') || (s.charAt(i) > '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Recursively delete a directory tree, without following symbolic links.
+	 */
+	private static void deleteTree(Path root) throws IOException {
+		if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e)
+					throws IOException {
+				if (e != null) {
+					throw e;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Get the revision of the last change to the given URL in the repository.
+	 * The connection belongs to the session and is left open for the next
+	 * operations.
+	 * 
+	 * @return the last changed revision or -1 if it can't be determined
+	 */
+	private long getLastChangedRevision(SVNURL url) {
+
+		try {
+			SVNRepository repository = session.getRepository(url);
+			SVNDirEntry entry = repository.info("", -1);
+			if (entry != null) {
+				return entry.getRevision();
+			}
+			System.err.println("tag not found in repository: " + url);
+		} catch (SVNException se) {
+			System.err.println("can't get last changed revision of " + url
+					+ ": " + se.getMessage());
+		}
+		return -1;
+	}
+
+	/**
+	 * Print the time spent in a phase of the task.
+	 */
+	private void reportTime(String phase, long start) {
+		System.out.println("    " + phase + ": "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
 	/**
 	 * Attempt to recover a failed switch or checkout.
 	 * 
@@ -285,8 +1187,7 @@ public class SvnCacheTask extends Task {
 	private boolean recover(SVNUpdateClient updater, SVNURL tagUrl) {
 
 		// Get a working copy client to see what the current SVN url is.
-		SVNClientManager manager = SVNClientManager.newInstance();
-		SVNWCClient wc = manager.getWCClient();
+		SVNWCClient wc = session.getWCClient();
 
 		// Retrieve the URL for the repository.
 		try {
@@ -300,7 +1201,8 @@ public class SvnCacheTask extends Task {
 				while (count < recoveryLimit) {
 					try {
 						System.err.println("recovery attempt: " + count);
-						updater.doUpdate(wcPath, SVNRevision.HEAD, SVNDepth.INFINITY, false, false);
+						updater.doUpdate(wcPath, SVNRevision.HEAD, getUpdateDepth(), false, false);
+						applyDepths(updater);
 						System.err.println("recovery successful");
 						return true;
 					} catch (SVNException consumed) {
@@ -317,4 +1219,41 @@ public class SvnCacheTask extends Task {
 		return false;
 	}
 
+	/**
+	 * A nested element giving a path relative to the top of the tag.
+	 */
+	public static class PathElement {
+
+		private String path = null;
+
+		/**
+		 * Path relative to the top of the tag, e.g. cfg/sites/example.
+		 * 
+		 * @param path
+		 *            relative path
+		 */
+		public void setPath(String path) {
+			String p = path.replace('\\', '/');
+			while (p.startsWith("/")) {
+				p = p.substring(1);
+			}
+			while (p.endsWith("/")) {
+				p = p.substring(0, p.length() - 1);
+			}
+			if ((p.length() == 0) || p.equals("..") || p.startsWith("../")
+					|| p.endsWith("/..") || (p.indexOf("/../") >= 0)) {
+				throw new BuildException("invalid path: " + path);
+			}
+			this.path = p;
+		}
+
+		public String getPath() {
+			if (path == null) {
+				throw new BuildException("path must be specified");
+			}
+			return path;
+		}
+
+	}
+
 }
@@ -0,0 +1,220 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.internal.wc.DefaultSVNOptions;
+import org.tmatesoft.svn.core.io.ISVNConnectionListener;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.wc.DefaultSVNRepositoryPool;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNStatusClient;
+import org.tmatesoft.svn.core.wc.SVNUpdateClient;
+import org.tmatesoft.svn.core.wc.SVNWCClient;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+/**
+ * A single SVNClientManager, with its pool of repository connections, used
+ * for all of the subversion operations of a task. The connections are kept
+ * open and reused between operations until the session is disposed. A
+ * session can be shared by all of the tasks of an Ant project: it is then
+ * stored as a project reference and disposed at the end of the build.
+ *
+ * The session counts the connections actually opened to the repositories
+ * and the repository instances handed out by its pool.
+ */
+class SvnSession {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	/* The pool of repository connections. */
+	private final CountingRepositoryPool pool;
+
+	/* The client manager using the pool. */
+	private final SVNClientManager manager;
+
+	/* Digest of the credentials the session was created for. */
+	private final String credentials;
+
+	/**
+	 * Create a session authenticating with the given user name and password.
+	 */
+	public SvnSession(String username, String password) {
+		ISVNAuthenticationManager authManager = SVNWCUtil
+				.createDefaultAuthenticationManager(username, password);
+		DefaultSVNOptions options = SVNWCUtil.createDefaultOptions(true);
+		this.pool = new CountingRepositoryPool(authManager, options);
+		this.manager = SVNClientManager.newInstance(options, pool);
+		this.credentials = getCredentials(username, password);
+	}
+
+	/*
+	 * Returns a digest identifying the user name and password, so that the
+	 * password itself isn't kept in the session.
+	 */
+	private static String getCredentials(String username, String password) {
+		MessageDigest md = Checksums.newDigest("SHA-256");
+		md.update(String.valueOf(username).getBytes(UTF8));
+		md.update((byte) 0);
+		md.update(String.valueOf(password).getBytes(UTF8));
+		return Checksums.toHex(md.digest());
+	}
+
+	/**
+	 * Returns the session stored in the project under the given reference,
+	 * creating it if necessary. A stored session is only reused for the same
+	 * user name and password, else it is replaced. A new session is disposed
+	 * at the end of the build.
+	 */
+	public static SvnSession getShared(Project project, String id,
+			String username, String password) {
+
+		synchronized (project) {
+			Object ref = project.getReference(id);
+			if (ref instanceof SvnSession) {
+				SvnSession session = (SvnSession) ref;
+				if (session.credentials.equals(getCredentials(username,
+						password))) {
+					return session;
+				}
+			}
+
+			final SvnSession session = new SvnSession(username, password);
+			project.addReference(id, session);
+			project.addBuildListener(new BuildListener() {
+				public void buildFinished(BuildEvent event) {
+					session.report();
+					session.dispose();
+				}
+
+				public void buildStarted(BuildEvent event) {
+				}
+
+				public void targetStarted(BuildEvent event) {
+				}
+
+				public void targetFinished(BuildEvent event) {
+				}
+
+				public void taskStarted(BuildEvent event) {
+				}
+
+				public void taskFinished(BuildEvent event) {
+				}
+
+				public void messageLogged(BuildEvent event) {
+				}
+			});
+			return session;
+		}
+	}
+
+	/**
+	 * Returns the working copy client.
+	 */
+	public synchronized SVNWCClient getWCClient() {
+		return manager.getWCClient();
+	}
+
+	/**
+	 * Returns the update client.
+	 */
+	public synchronized SVNUpdateClient getUpdateClient() {
+		return manager.getUpdateClient();
+	}
+
+	/**
+	 * Returns the status client.
+	 */
+	public synchronized SVNStatusClient getStatusClient() {
+		return manager.getStatusClient();
+	}
+
+	/**
+	 * Returns a repository for the given URL, reusing an open one if
+	 * possible. The repository must not be closed by the caller.
+	 */
+	public synchronized SVNRepository getRepository(SVNURL url)
+			throws SVNException {
+		return manager.createRepository(url, true);
+	}
+
+	/**
+	 * Print the number of connections opened and of repository instances.
+	 */
+	public synchronized void report() {
+		System.out.println("SVN session: " + pool.getConnections()
+				+ " connections opened for " + pool.getRepositories()
+				+ " repository instances");
+	}
+
+	/**
+	 * Close all of the connections of the session.
+	 */
+	public synchronized void dispose() {
+		manager.dispose();
+	}
+
+	/**
+	 * A repository pool counting the distinct repositories it hands out and
+	 * the connections they open.
+	 */
+	private static class CountingRepositoryPool extends
+			DefaultSVNRepositoryPool {
+
+		private final Map<SVNRepository, Boolean> repositories = new IdentityHashMap<SVNRepository, Boolean>();
+
+		/* Number of connections opened by the repositories. */
+		private int connections = 0;
+
+		private final ISVNConnectionListener listener = new ISVNConnectionListener() {
+			public void connectionOpened(SVNRepository repository) {
+				synchronized (CountingRepositoryPool.this) {
+					connections++;
+				}
+			}
+
+			public void connectionClosed(SVNRepository repository) {
+			}
+		};
+
+		CountingRepositoryPool(ISVNAuthenticationManager authManager,
+				DefaultSVNOptions options) {
+			super(authManager, options);
+		}
+
+		@Override
+		public synchronized SVNRepository createRepository(SVNURL url,
+				boolean mayReuse) throws SVNException {
+			SVNRepository repository = super.createRepository(url, mayReuse);
+			if (repositories.put(repository, Boolean.TRUE) == null) {
+				repository.addConnectionListener(listener);
+			}
+			return repository;
+		}
+
+		synchronized int getConnections() {
+			return connections;
+		}
+
+		synchronized int getRepositories() {
+			return repositories.size();
+		}
+
+	}
+
+}
@@ -12,6 +12,7 @@ import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 import org.tmatesoft.svn.core.SVNCommitInfo;
 import org.tmatesoft.svn.core.SVNDepth;
+import org.tmatesoft.svn.core.SVNDirEntry;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNNodeKind;
 import org.tmatesoft.svn.core.SVNURL;
@@ -74,6 +75,9 @@ public class SvnTagTask extends Task {
 	/* Control printing of debugging messages in this task */
 	private boolean debugTask = false;
 
+	/* Check the workspace against the repository without a remote status */
+	private boolean fastCheck = false;
+
 	/**
 	 * Setting this flag will print debugging information from the task itself.
 	 * This is primarily useful if one wants to debug a build using the command
@@ -86,6 +90,20 @@ public class SvnTagTask extends Task {
 		this.debugTask = debugTask;
 	}
 
+	/**
+	 * Setting this flag replaces the remote status of the whole workspace by
+	 * a local scan and a single request for the last changed revision of the
+	 * trunk. The workspace is up-to-date if none of its entries is older than
+	 * this revision. If the scan is inconclusive (switched paths, externals,
+	 * entries older than the last change), the full remote status is done.
+	 * 
+	 * @param fastCheck
+	 *            flag to enable the fast consistency check
+	 */
+	public void setFastCheck(boolean fastCheck) {
+		this.fastCheck = fastCheck;
+	}
+
 	/*
 	 * Set the tag name to use.
 	 * 
@@ -227,15 +245,25 @@ public class SvnTagTask extends Task {
 							+ ": " + e.getMessage());
 		}
 
+		// If requested, try to avoid the remote status with a local scan of
+		// the workspace compared with the last change in the repository.
+		handler.reset();
+		boolean upToDate = false;
+		if (fastCheck) {
+			upToDate = isUpToDate(status, handler, repositoryTags, srcUrl);
+		}
+
 		// Check for any local or remote modifications. With the flags below,
 		// it will do a recursive search of the workspace. The handler will
 		// not be called for ignored or normal (unmodified, uptodate) files.
-		System.out.println("Checking for local and remote modifications...");
-		handler.reset();
-		try {
-			status.doStatus(workspacePath, SVNRevision.HEAD, SVNDepth.INFINITY, true, false, false, false, handler,null);
-		} catch (SVNException e) {
-			throw new BuildException("Check failed (" + e.toString() + ")");
+		if (!upToDate && !handler.isModified()) {
+			System.out.println("Checking for local and remote modifications...");
+			handler.reset();
+			try {
+				status.doStatus(workspacePath, SVNRevision.HEAD, SVNDepth.INFINITY, true, false, false, false, handler,null);
+			} catch (SVNException e) {
+				throw new BuildException("Check failed (" + e.toString() + ")");
+			}
 		}
 		if (handler.isModified()) {
 			if (handler.isModifiedLocally()) {
@@ -267,6 +295,75 @@ public class SvnTagTask extends Task {
 
 	}
 
+	/**
+	 * Check the workspace without contacting the repository for each file: a
+	 * local status collects the local modifications and the range of
+	 * revisions of the workspace entries, which is compared with the last
+	 * changed revision of the trunk. The repository connection is moved to the
+	 * trunk URL.
+	 * 
+	 * @return true if the workspace is known to be up-to-date, false if the
+	 *         workspace has local modifications or the check is inconclusive
+	 */
+	private boolean isUpToDate(SVNStatusClient status, StatusHandler handler,
+			SVNRepository repository, SVNURL srcUrl) {
+
+		System.out.println("Checking for local modifications...");
+		long start = System.currentTimeMillis();
+		try {
+			status.doStatus(workspacePath, SVNRevision.WORKING, SVNDepth.INFINITY, false, true, false, false, handler, null);
+		} catch (SVNException e) {
+			throw new BuildException("Check failed (" + e.toString() + ")");
+		}
+		if (debugTask) {
+			System.out.println("Local check: "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+		if (handler.isModified()) {
+			return false;
+		}
+
+		// Switched paths and externals come from other locations: only the
+		// remote status can tell if they are up-to-date.
+		String reason = null;
+		long lastChanged = -1;
+		if (handler.isSwitched()) {
+			reason = "workspace has switched paths";
+		} else if (handler.hasExternals()) {
+			reason = "workspace has externals";
+		} else if (handler.getMinRevision() < 0) {
+			reason = "workspace revision unknown";
+		} else {
+			try {
+				repository.setLocation(srcUrl, false);
+				SVNDirEntry entry = repository.info("", -1);
+				if (entry != null) {
+					lastChanged = entry.getRevision();
+				}
+			} catch (SVNException e) {
+				throw new BuildException(
+						"Error getting information about SVN branch " + srcUrl
+								+ ": " + e.getMessage());
+			}
+			if (lastChanged < 0) {
+				reason = "last changed revision unknown";
+			} else if (handler.getMinRevision() < lastChanged) {
+				reason = "workspace revisions " + handler.getMinRevision()
+						+ ":" + handler.getMaxRevision()
+						+ " older than last change r" + lastChanged;
+			}
+		}
+
+		if (reason != null) {
+			System.out.println("Fast check inconclusive (" + reason + ")");
+			return false;
+		}
+		System.out.println("Workspace is up-to-date: revisions "
+				+ handler.getMinRevision() + ":" + handler.getMaxRevision()
+				+ ", last change r" + lastChanged);
+		return true;
+	}
+
 	/**
 	 * A private class to collect the status information for the subversion
 	 * workspace.
@@ -290,6 +387,23 @@ public class SvnTagTask extends Task {
 		 */
 		private boolean debugHandler = false;
 
+		/**
+		 * The lowest and highest revisions of the entries seen (-1 if none).
+		 */
+		private long minRevision = -1;
+
+		private long maxRevision = -1;
+
+		/**
+		 * A private flag to indicate whether any entry is switched.
+		 */
+		private boolean switched = false;
+
+		/**
+		 * A private flag to indicate whether the workspace has externals.
+		 */
+		private boolean externals = false;
+
 		public StatusHandler(boolean debugTask) {
 			debugHandler = debugTask;
 		}
@@ -309,6 +423,26 @@ public class SvnTagTask extends Task {
 			// If the file has no modification, check its properties.
 
 			SVNStatusType ls = status.getContentsStatus();
+
+			// Collect the revision range and the entries coming from another
+			// location (only reported if reportAll=true in doStatus() call).
+			SVNRevision revision = status.getRevision();
+			if ((revision != null) && (revision.getNumber() >= 0)) {
+				long number = revision.getNumber();
+				if ((minRevision < 0) || (number < minRevision)) {
+					minRevision = number;
+				}
+				if (number > maxRevision) {
+					maxRevision = number;
+				}
+			}
+			if (status.isSwitched()) {
+				switched = true;
+			}
+			if (ls == SVNStatusType.STATUS_EXTERNAL) {
+				externals = true;
+			}
+
 			boolean fileModifiedLocally = (ls != SVNStatusType.STATUS_NORMAL)
 					&& (ls != SVNStatusType.STATUS_IGNORED)
 					&& (ls != SVNStatusType.STATUS_EXTERNAL)
@@ -394,12 +528,44 @@ public class SvnTagTask extends Task {
 			return remoteModifications;
 		}
 
+		/**
+		 * Get the lowest revision of the entries (-1 if none).
+		 */
+		public long getMinRevision() {
+			return minRevision;
+		}
+
+		/**
+		 * Get the highest revision of the entries (-1 if none).
+		 */
+		public long getMaxRevision() {
+			return maxRevision;
+		}
+
+		/**
+		 * Get the switched entries flag.
+		 */
+		public boolean isSwitched() {
+			return switched;
+		}
+
+		/**
+		 * Get the externals flag.
+		 */
+		public boolean hasExternals() {
+			return externals;
+		}
+
 		/**
 		 * Reset the status flag.
 		 */
 		public void reset() {
 			localModifications = false;
 			remoteModifications = false;
+			minRevision = -1;
+			maxRevision = -1;
+			switched = false;
+			externals = false;
 		}
 
 	}
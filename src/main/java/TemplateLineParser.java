@@ -0,0 +1,213 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+/**
+ * Classify the lines of a repository template in a single pass. The first
+ * non-blank character of the line selects the only form which can apply and
+ * just that form is checked. The accepted lines and extracted values are the
+ * same as with the following regular expressions (full match):
+ *
+ * <pre>
+ * NAME           \s*#\s*name\s*=\s*([^\s]+)\s*
+ * OWNER          \s*#\s*owner\s*=\s*([^\s]+)\s*
+ * URL            \s*#\s*url\s*=\s*([^\s]+)\s*
+ * PKG            \s*#\s*pkg\s*=\s*([^\s]+)\s*
+ * TEMPLATE       \s*structure\s*template\s*([^\s]+)\s*;
+ * NAME_PROPERTY  \s*["']name["']\s*=\s*["']([^\s]+)["']\s*;\s*
+ * </pre>
+ *
+ * The parser is reused for all lines: the only allocation is the substring
+ * holding the value of a matching line.
+ */
+class TemplateLineParser {
+
+	public static final int NONE = 0;
+
+	public static final int NAME = 1;
+
+	public static final int OWNER = 2;
+
+	public static final int URL = 3;
+
+	public static final int PKG = 4;
+
+	public static final int TEMPLATE = 5;
+
+	public static final int NAME_PROPERTY = 6;
+
+	/* The keywords of the comment lines, indexed by type. */
+	private static final String[] KEYWORDS = { null, "name", "owner", "url",
+			"pkg" };
+
+	/* The type of the last parsed line. */
+	private int type = NONE;
+
+	/* The value extracted from the last parsed line. */
+	private String value = null;
+
+	/**
+	 * Parse the given line and return its type. The value of the line, if
+	 * any, is then available from getValue().
+	 */
+	public int parse(String line) {
+
+		type = NONE;
+		value = null;
+
+		int i = skipSpaces(line, 0);
+		if (i < line.length()) {
+			char c = line.charAt(i);
+			if (c == '#') {
+				parseComment(line, i + 1);
+			} else if (c == 's') {
+				parseTemplate(line, i);
+			} else if ((c == '"') || (c == '\'')) {
+				parseNameProperty(line, i + 1);
+			}
+		}
+
+		return type;
+	}
+
+	/**
+	 * Returns the type of the last parsed line.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the value extracted from the last parsed line or null if the
+	 * line didn't match any form.
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/* '# keyword = value' */
+	private void parseComment(String line, int start) {
+
+		int i = skipSpaces(line, start);
+
+		int t;
+		for (t = NAME; t <= PKG; t++) {
+			if (line.startsWith(KEYWORDS[t], i)) {
+				break;
+			}
+		}
+		if (t > PKG) {
+			return;
+		}
+
+		i = skipSpaces(line, i + KEYWORDS[t].length());
+		if ((i == line.length()) || (line.charAt(i) != '=')) {
+			return;
+		}
+		i = skipSpaces(line, i + 1);
+
+		setValue(t, line, i, trimEnd(line, i, line.length()));
+	}
+
+	/* 'structure template name;' */
+	private void parseTemplate(String line, int start) {
+
+		if (!line.startsWith("structure", start)) {
+			return;
+		}
+		int i = skipSpaces(line, start + 9);
+		if (!line.startsWith("template", i)) {
+			return;
+		}
+		i = skipSpaces(line, i + 8);
+
+		// The line must end with the semicolon, without trailing whitespace.
+		int end = line.length() - 1;
+		if ((end < i) || (line.charAt(end) != ';')) {
+			return;
+		}
+
+		setValue(TEMPLATE, line, i, trimEnd(line, i, end));
+	}
+
+	/* '"name" = "value";' (with either quote character) */
+	private void parseNameProperty(String line, int start) {
+
+		if (!line.startsWith("name", start)) {
+			return;
+		}
+		int i = start + 4;
+		if ((i == line.length()) || !isQuote(line.charAt(i))) {
+			return;
+		}
+		i = skipSpaces(line, i + 1);
+		if ((i == line.length()) || (line.charAt(i) != '=')) {
+			return;
+		}
+		i = skipSpaces(line, i + 1);
+		if ((i == line.length()) || !isQuote(line.charAt(i))) {
+			return;
+		}
+		i++;
+
+		// Work backwards from the end of the line: whitespace, semicolon,
+		// whitespace and the closing quote.
+		int end = trimEnd(line, i, line.length());
+		if ((end == i) || (line.charAt(end - 1) != ';')) {
+			return;
+		}
+		end = trimEnd(line, i, end - 1);
+		if ((end == i) || !isQuote(line.charAt(end - 1))) {
+			return;
+		}
+
+		setValue(NAME_PROPERTY, line, i, end - 1);
+	}
+
+	/*
+	 * Set the value if the given range is a non-empty sequence of
+	 * non-whitespace characters.
+	 */
+	private void setValue(int t, String line, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		for (int i = from; i < to; i++) {
+			if (isSpace(line.charAt(i))) {
+				return;
+			}
+		}
+		type = t;
+		value = line.substring(from, to);
+	}
+
+	private static int skipSpaces(String line, int i) {
+		while ((i < line.length()) && isSpace(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/* Returns the end of the range once trailing whitespace is removed. */
+	private static int trimEnd(String line, int from, int to) {
+		while ((to > from) && isSpace(line.charAt(to - 1))) {
+			to--;
+		}
+		return to;
+	}
+
+	private static boolean isQuote(char c) {
+		return (c == '"') || (c == '\'');
+	}
+
+	/* Whitespace as defined by the regular expression \s. */
+	private static boolean isSpace(char c) {
+		return (c == ' ') || (c == '\t') || (c == '\n') || (c == '\u000B')
+				|| (c == '\f') || (c == '\r');
+	}
+
+}
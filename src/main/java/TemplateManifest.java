@@ -0,0 +1,250 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Persistent manifest of the repository templates read by RepositoryTask. For
+ * each template, it records the modification time, size and SHA-256 digest of
+ * the file along with the values parsed from it and a digest of its package
+ * list. A template whose modification time and size (or, failing that,
+ * content digest) are unchanged doesn't need to be parsed again.
+ *
+ * Only the templates looked up or recorded during the current run are saved,
+ * so entries for removed templates are dropped automatically.
+ */
+class TemplateManifest {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private static final String HEADER = "# RepositoryTask template manifest";
+
+	/* The file holding the manifest. */
+	private final File file;
+
+	/* Entries read from the manifest file, indexed by absolute path. */
+	private final Map<String, Entry> previous = new HashMap<String, Entry>();
+
+	/* Entries for the templates seen during this run. */
+	private final Map<String, Entry> current = new TreeMap<String, Entry>();
+
+	/**
+	 * Create a manifest backed by the given file. The existing entries are
+	 * read if the file exists; an unreadable manifest is ignored.
+	 */
+	public TemplateManifest(File file) {
+		this.file = file;
+		if (file.exists()) {
+			read();
+		}
+	}
+
+	/**
+	 * Returns the recorded entry for the given template if the file has not
+	 * changed since it was recorded, null otherwise.
+	 */
+	public Entry lookup(File template) {
+
+		String path = template.getAbsolutePath();
+		Entry entry = previous.get(path);
+		if (entry == null) {
+			return null;
+		}
+
+		long mtime = template.lastModified();
+		long size = template.length();
+		if (size != entry.size) {
+			return null;
+		}
+
+		// The file may have been touched without being modified (e.g. by a
+		// checkout): compare the content digest before giving up.
+		if (mtime != entry.mtime) {
+			try {
+				if (!entry.hash.equals(Checksums.digest(template, "SHA-256"))) {
+					return null;
+				}
+			} catch (IOException consumed) {
+				return null;
+			}
+			entry.mtime = mtime;
+		}
+
+		current.put(path, entry);
+		return entry;
+	}
+
+	/**
+	 * Record the entry for the given template. The modification time and size
+	 * are taken from the file; the content digest is computed if the given
+	 * one is null.
+	 */
+	public void record(File template, Entry entry, String hash) {
+		try {
+			entry.mtime = template.lastModified();
+			entry.size = template.length();
+			entry.hash = (hash != null) ? hash : Checksums.digest(template, "SHA-256");
+			current.put(template.getAbsolutePath(), entry);
+		} catch (IOException ioe) {
+			throw new BuildException("Error reading template "
+					+ template.getAbsolutePath() + ": (" + ioe.toString() + ")");
+		}
+	}
+
+	/**
+	 * Write the entries recorded during this run to the manifest file.
+	 */
+	public void save() {
+
+		File tmp = null;
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			Writer writer = new OutputStreamWriter(new FileOutputStream(tmp),
+					UTF8);
+			try {
+				writer.write(HEADER + "\n");
+				for (Map.Entry<String, Entry> e : current.entrySet()) {
+					Entry entry = e.getValue();
+					writer.write(e.getKey() + "\t" + entry.mtime + "\t"
+							+ entry.size + "\t" + entry.hash + "\t"
+							+ field(entry.name) + "\t" + field(entry.owner)
+							+ "\t" + field(entry.url) + "\t"
+							+ field(entry.templateName) + "\t"
+							+ field(entry.nameProperty) + "\t"
+							+ field(entry.pkgDigest) + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+		} catch (IOException ioe) {
+			if (tmp != null) {
+				tmp.delete();
+			}
+			throw new BuildException("Error writing manifest "
+					+ file.getAbsolutePath() + ": (" + ioe.toString() + ")");
+		}
+	}
+
+	/*
+	 * Read the manifest file. Malformed lines are skipped.
+	 */
+	private void read() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), UTF8));
+			for (String line = reader.readLine(); line != null; line = reader
+					.readLine()) {
+				String[] fields = line.split("\t", -1);
+				if (line.startsWith("#") || (fields.length != 10)) {
+					continue;
+				}
+				try {
+					Entry entry = new Entry();
+					entry.mtime = Long.parseLong(fields[1]);
+					entry.size = Long.parseLong(fields[2]);
+					entry.hash = fields[3];
+					entry.name = value(fields[4]);
+					entry.owner = value(fields[5]);
+					entry.url = value(fields[6]);
+					entry.templateName = value(fields[7]);
+					entry.nameProperty = value(fields[8]);
+					entry.pkgDigest = value(fields[9]);
+					previous.put(fields[0], entry);
+				} catch (NumberFormatException consumed) {
+				}
+			}
+		} catch (IOException consumed) {
+			previous.clear();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException consumed) {
+				}
+			}
+		}
+	}
+
+	/* Parsed values never contain whitespace: null is stored as "". */
+	private static String field(String value) {
+		return (value != null) ? value : "";
+	}
+
+	private static String value(String field) {
+		return (field.length() > 0) ? field : null;
+	}
+
+	/**
+	 * Returns a new SHA-256 message digest.
+	 */
+	public static MessageDigest newDigest() {
+		return Checksums.newDigest("SHA-256");
+	}
+
+	/**
+	 * Returns the hexadecimal SHA-256 digest of a package list. The packages
+	 * must be given in sorted order (e.g. from a TreeSet).
+	 */
+	public static String digest(Iterable<String> sortedPkgs) {
+		MessageDigest md = newDigest();
+		for (String pkg : sortedPkgs) {
+			md.update(pkg.getBytes(UTF8));
+			md.update((byte) '\n');
+		}
+		return Checksums.toHex(md.digest());
+	}
+
+	/**
+	 * The information recorded for one template. The name is null if the file
+	 * was not recognized as a repository template.
+	 */
+	static class Entry {
+
+		long mtime;
+
+		long size;
+
+		String hash;
+
+		String name;
+
+		String owner;
+
+		String url;
+
+		String templateName;
+
+		String nameProperty;
+
+		String pkgDigest;
+
+	}
+
+}
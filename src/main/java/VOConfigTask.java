@@ -9,7 +9,7 @@ package org.quattor.ant;
 import java.io.File;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.IOException;
 import java.io.FileNotFoundException;
@@ -313,7 +313,8 @@ public class VOConfigTask extends Task {
 
         
         try {
-            OutputStreamWriter template = new OutputStreamWriter(new FileOutputStream(voListTpl), Charset.forName("utf-8"));
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            OutputStreamWriter template = new OutputStreamWriter(buffer, Charset.forName("utf-8"));
             template.write("unique template "+voListNS+";\n\n");
             template.write("variable ALLVOS ?= list(\n");
             for (String vo : voTable.keySet()) {
@@ -321,6 +322,7 @@ public class VOConfigTask extends Task {
             }
             template.write(");\n\n");
             template.close();
+            FileUpdater.update(new File(voListTpl), buffer.toByteArray());
         } catch (IOException e){
             throw new BuildException("Error writing the VO list ("+voListTpl+")\n"+e.getMessage());
         }            
@@ -337,7 +339,8 @@ public class VOConfigTask extends Task {
 
         
         try {
-            OutputStreamWriter template = new OutputStreamWriter(new FileOutputStream(dnListTpl), Charset.forName("utf-8"));
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            OutputStreamWriter template = new OutputStreamWriter(buffer, Charset.forName("utf-8"));
             template.write("unique template "+dnListNS+";\n\n");
             if ( vomsServers != null ) {
                 template.write("variable VOMS_SERVER_DN ?= list(\n");
@@ -355,6 +358,7 @@ public class VOConfigTask extends Task {
                 }
             }
             template.close();
+            FileUpdater.update(new File(dnListTpl), buffer.toByteArray());
         } catch (IOException e){
             throw new BuildException("Error writing the VO list ("+dnListTpl+")\n"+e.getMessage());
         }            
@@ -718,7 +722,8 @@ public class VOConfigTask extends Task {
             System.out.println("Writing template for VO "+getName()+" ("+voParamsTpl+")");
 
             try {
-                OutputStreamWriter template = new OutputStreamWriter(new FileOutputStream(voParamsTpl), Charset.forName("utf-8"));
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                OutputStreamWriter template = new OutputStreamWriter(buffer, Charset.forName("utf-8"));
                 template.write("structure template "+voParamsNS+";\n");
                 template.write("\n");
                 template.write("'name' ?= '"+getName()+"';\n");
@@ -755,6 +760,7 @@ public class VOConfigTask extends Task {
                 template.write("\n");
                 template.write("'base_uid' ?= "+getBaseUid()+";\n");
                 template.close();
+                FileUpdater.update(new File(voParamsTpl), buffer.toByteArray());
             } catch (IOException e){
                 throw new BuildException("Error writing template for VO "+getName()+" ("+voParamsTpl+")\n"+e.getMessage());
             }            
@@ -997,7 +1003,8 @@ public class VOConfigTask extends Task {
             String oldCert = getOldCert(templateBranch);
 
             try {
-                OutputStreamWriter template = new OutputStreamWriter(new FileOutputStream(certParamsTpl), Charset.forName("utf-8"));
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                OutputStreamWriter template = new OutputStreamWriter(buffer, Charset.forName("utf-8"));
                 template.write("structure template "+getCertParamsNS()+";\n\n");
                 template.write("'cert' ?= <<EOF;\n");
                 template.write(getCert());
@@ -1009,6 +1016,7 @@ public class VOConfigTask extends Task {
                     template.write("\nEOF\n\n");
                 }
                 template.close();
+                FileUpdater.update(new File(certParamsTpl), buffer.toByteArray());
             } catch (IOException e){
                 throw new BuildException("Error writing template for VOMS server "+getHost()+" ("+certParamsTpl+")\n"+e.getMessage());
             }            
@@ -0,0 +1,102 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Check the scheduling of the lookups of HostResolver with a stubbed
+ * resolver: hosts named "hang-*" never answer within the test (and ignore
+ * interrupts, like a DNS lookup), "slow-*" answer after 250 ms, "unknown-*"
+ * don't exist and the other hosts answer immediately.
+ */
+public class HostResolverTest {
+
+	private static final byte[] LOCALHOST = { 127, 0, 0, 1 };
+
+	@Test
+	public void hangingLookupsDontTimeOutQueuedHosts() {
+		HostResolver resolver = new StubResolver(2, 200);
+
+		long start = System.currentTimeMillis();
+		Map<String, InetAddress> addresses = resolver.resolve(Arrays.asList(
+				"a-hang-1", "a-hang-2", "fast-1", "fast-2", "fast-3",
+				"fast-4", "fast-5"));
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(5, addresses.size());
+		Map<String, String> expected = new TreeMap<String, String>();
+		expected.put("a-hang-1", "timeout");
+		expected.put("a-hang-2", "timeout");
+		assertEquals(expected, resolver.getUnresolved());
+		assertTrue("resolution took " + elapsed + " ms", elapsed < 2000);
+	}
+
+	@Test
+	public void timeoutCountsFromStartOfLookup() {
+		HostResolver resolver = new StubResolver(1, 400);
+
+		Map<String, InetAddress> addresses = resolver.resolve(Arrays.asList(
+				"slow-1", "slow-2", "slow-3"));
+
+		assertEquals(3, addresses.size());
+		assertEquals(0, resolver.getUnresolved().size());
+	}
+
+	@Test
+	public void unknownHostsAreReported() {
+		HostResolver resolver = new StubResolver(4, 200);
+
+		Map<String, InetAddress> addresses = resolver.resolve(Arrays.asList(
+				"fast-1", "unknown-1"));
+
+		assertEquals(1, addresses.size());
+		assertEquals("unknown host", resolver.getUnresolved().get("unknown-1"));
+	}
+
+	private static class StubResolver extends HostResolver {
+
+		StubResolver(int threads, long timeout) {
+			super(null, 60000, threads, timeout);
+		}
+
+		@Override
+		InetAddress lookup(String host) throws UnknownHostException {
+			if (host.startsWith("unknown-")) {
+				throw new UnknownHostException(host);
+			}
+			if (host.contains("hang-")) {
+				pause(5000);
+			} else if (host.startsWith("slow-")) {
+				pause(250);
+			}
+			return InetAddress.getByAddress(host, LOCALHOST);
+		}
+
+		private static void pause(long ms) {
+			long end = System.currentTimeMillis() + ms;
+			for (long left = ms; left > 0; left = end
+					- System.currentTimeMillis()) {
+				try {
+					Thread.sleep(left);
+				} catch (InterruptedException consumed) {
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Check that HrefScanner returns the same package references as the regular
+ * expression it replaced, including on anchors spanning several lines or
+ * the boundaries of the read buffer.
+ */
+public class HrefScannerTest {
+
+	private static final Pattern HREF_PATTERN = Pattern.compile(
+			"<a\\s+.*?href=\"(.*?\\.rpm)\"\\s*>", Pattern.CASE_INSENSITIVE
+					| Pattern.MULTILINE);
+
+	@Test
+	public void emptyDocuments() throws IOException {
+		assertSame("");
+		assertSame(" \n\t\n");
+		assertSame("<html><body></body></html>");
+	}
+
+	@Test
+	public void simpleListing() throws IOException {
+		assertSame("<a href=\"foo-1.0-1.x86_64.rpm\">foo-1.0-1.x86_64.rpm</a>\n"
+				+ "<a href=\"perl-Net-DNS-0.65-1.el7.noarch.rpm\">x</a>\n"
+				+ "<a href=\"repodata/\">repodata/</a>\n"
+				+ "<a href=\"foo-1.0-1.src.rpm.sig\">sig</a>\n");
+	}
+
+	@Test
+	public void caseAndAttributes() throws IOException {
+		assertSame("<A HREF=\"FOO-1-1.X86_64.RPM\">x</A>");
+		assertSame("<A href=\"foo-1-1.x86_64.rpm\" >x</A>");
+		assertSame("<a class=\"f\" title=\"a.rpm\" href=\"b-1-1.noarch.rpm\">");
+		assertSame("<a\n\thref=\"foo-1-1.noarch.rpm\"\n>x</a>");
+		assertSame("<ahref=\"foo-1-1.noarch.rpm\">");
+		assertSame("<a href=foo-1-1.noarch.rpm>");
+		assertSame("<a href='foo-1-1.noarch.rpm'>");
+		assertSame("<a href=\"foo-1-1.noarch.rpm\" title=\"x\">");
+		assertSame("<a href=\"a.rpm\" x=\"b.rpm\">");
+		assertSame("<a href=\"foo\n-1-1.noarch.rpm\">");
+		assertSame("<a <a href=\"foo-1-1.noarch.rpm\">");
+	}
+
+	@Test
+	public void longLines() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			sb.append("<a href=\"pkg").append(i).append("-1.0-1.x86_64.rpm\">");
+			sb.append("pkg").append(i).append("</a>");
+			if (i % 7 == 0) {
+				sb.append('\n');
+			}
+		}
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			name.append('x');
+		}
+		sb.append("<a href=\"").append(name).append("-1-1.noarch.rpm\">\n");
+		assertSame(sb.toString());
+	}
+
+	private static void assertSame(String document) throws IOException {
+		List<String> expected = new ArrayList<String>();
+		Matcher m = HREF_PATTERN.matcher(document);
+		while (m.find()) {
+			expected.add(m.group(1));
+		}
+
+		List<String> hrefs = new ArrayList<String>();
+		HrefScanner scanner = new HrefScanner(new StringReader(document));
+		for (String href = scanner.next(); href != null; href = scanner
+				.next()) {
+			hrefs.add(href);
+		}
+
+		assertEquals(expected, hrefs);
+	}
+
+}
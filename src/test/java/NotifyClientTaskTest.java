@@ -0,0 +1,84 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Check that the host names extracted from the profile names are the same as
+ * with the regular expression used previously.
+ */
+public class NotifyClientTaskTest {
+
+    private static final Pattern PROFILE_REGEX = Pattern
+            .compile("^(?!profiles-info)(.+?)(?:\\.\\w+)(?:\\.gz|\\.GZ|\\.bz2|\\.BZ2)?$");
+
+    private static final String DOMAIN = "example.org";
+
+    @Test
+    public void qualifiedNames() {
+        assertSame("node01.example.org.xml");
+        assertSame("node01.example.org.json.gz");
+        assertSame("node-01.sub.example.org.xml.GZ");
+        assertSame("node_01.example.org.xml.bz2");
+        assertSame("node01.example.org.xml.BZ2");
+    }
+
+    @Test
+    public void unqualifiedNames() {
+        assertSame("node01.xml");
+        assertSame("node-01.json.gz");
+        assertSame("a.b");
+        assertSame("gz.gz");
+        assertSame("node01.gz.gz");
+    }
+
+    @Test
+    public void notProfiles() {
+        assertSame("");
+        assertSame(" ");
+        assertSame("node01");
+        assertSame(".xml");
+        assertSame("node01.");
+        assertSame("node01.xml.");
+        assertSame("node01.x-y");
+        assertSame("node01.xml.Gz");
+        assertSame("profiles-info.xml");
+        assertSame("profiles-info-3.xml.gz");
+        assertSame("node\n01.xml");
+    }
+
+    @Test
+    public void namesInDirectories() {
+        assertSame("profiles" + File.separator + "node01.example.org.xml");
+        assertSame("profiles" + File.separator + "profiles-info.xml");
+        assertSame("profiles-info" + File.separator + "node01.xml");
+    }
+
+    private static void assertSame(String path) {
+        String name = new File(path).getName();
+        String expected = null;
+        Matcher m = PROFILE_REGEX.matcher(name);
+        if (m.matches()) {
+            expected = m.group(1);
+            if (expected.indexOf('.') < 0) {
+                expected = expected + "." + DOMAIN;
+            }
+        }
+
+        NotifyClientTask task = new NotifyClientTask();
+        task.setDomain(DOMAIN);
+        assertEquals("[" + path + "]", expected, task.getFullHostname(path));
+    }
+
+}
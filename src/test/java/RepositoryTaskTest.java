@@ -0,0 +1,87 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Check that the package names extracted from a repository listing and the
+ * template lines generated for them are the same as with the regular
+ * expression used previously.
+ */
+public class RepositoryTaskTest {
+
+	private static final Pattern RPM_PATTERN = Pattern
+			.compile("\\s*(.+)-((?:[^-]+)-(?:[^-]+))\\.([^\\.]+)\\.rpm\\s*$");
+
+	@Test
+	public void regularPackages() {
+		assertSame("kernel-3.10.0-1160.el7.x86_64.rpm");
+		assertSame("perl-Net-DNS-0.65-1.el7.noarch.rpm");
+		assertSame("python2.7-libs-2.7.5-90.el7.x86_64.rpm");
+		assertSame("a-1-2.i.rpm");
+		assertSame("  glibc-2.17-317.el7.i686.rpm \t");
+		assertSame("foo-1.0-1.el7.x86_64.rpm\n");
+	}
+
+	@Test
+	public void malformedNames() {
+		assertSame("");
+		assertSame(" ");
+		assertSame(".rpm");
+		assertSame("foo.rpm");
+		assertSame("foo-1.0-1.rpm");
+		assertSame("foo-1.0-1..rpm");
+		assertSame("foo-1.0-.x86_64.rpm");
+		assertSame("foo--1.x86_64.rpm");
+		assertSame("-1.0-1.x86_64.rpm");
+		assertSame("foo-1.0-1.x86_64.srpm");
+		assertSame("foo-1.0-1.x86_64.rpm.sig");
+		assertSame("foo-1.0-1.x86_64.RPM");
+		assertSame("foo\nbar-1.0-1.x86_64.rpm");
+	}
+
+	@Test
+	public void whitespaceOnlyName() {
+		assertSame(" -1.0-1.x86_64.rpm");
+		assertSame("\t\t-1.0-1.x86_64.rpm");
+	}
+
+	@Test
+	public void nullName() {
+		assertNull(RepositoryTask.parsePkg(null));
+	}
+
+	private static void assertSame(String pkg) {
+		String[] expected = null;
+		Matcher m = RPM_PATTERN.matcher(pkg);
+		if (m.matches()) {
+			String name = m.group(1);
+			String version = m.group(2);
+			String arch = m.group(3);
+			String key = name + "-" + version + "-" + arch;
+			expected = new String[] {
+					key,
+					"# pkg = " + key + "\n" + "escape(\"" + key
+							+ "\"),dict(\"name\",\"" + name
+							+ "\",\"version\",\"" + version
+							+ "\",\"arch\",\"" + arch + "\")" };
+		}
+
+		String[] nva = RepositoryTask.parsePkg(pkg);
+		String[] pair = (nva != null) ? RepositoryTask.formatPkg(nva[0],
+				nva[1], nva[2]) : null;
+		assertArrayEquals("[" + pkg + "]", expected, pair);
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+${license-info}
+${developer-info}
+${author-info}
+*/
+
+package org.quattor.ant;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Check that TemplateLineParser classifies lines exactly like the regular
+ * expressions it replaced.
+ */
+public class TemplateLineParserTest {
+
+	/* The former patterns, indexed by line type. */
+	private static final Pattern[] PATTERNS = {
+			null,
+			Pattern.compile("\\s*#\\s*name\\s*=\\s*([^\\s]+)\\s*"),
+			Pattern.compile("\\s*#\\s*owner\\s*=\\s*([^\\s]+)\\s*"),
+			Pattern.compile("\\s*#\\s*url\\s*=\\s*([^\\s]+)\\s*"),
+			Pattern.compile("\\s*#\\s*pkg\\s*=\\s*([^\\s]+)\\s*"),
+			Pattern.compile("\\s*structure\\s*template\\s*([^\\s]+)\\s*;"),
+			Pattern.compile("\\s*[\"']name[\"']\\s*=\\s*[\"']([^\\s]+)[\"']\\s*;\\s*") };
+
+	@Test
+	public void blankLines() {
+		assertSame("");
+		assertSame(" ");
+		assertSame("\t \t");
+		assertSame("\u000B\f");
+		assertSame("#");
+		assertSame("  #   ");
+	}
+
+	@Test
+	public void commentLines() {
+		assertSame("# name = foo");
+		assertSame("#name=foo");
+		assertSame("\t# owner = admin@example.org \t");
+		assertSame("# url = http://example.org/repo/x86_64/");
+		assertSame("# pkg = kernel-devel-3.10.0-1.el7-x86_64");
+		assertSame("# pkg = perl-Net-DNS-0.65-1.el7.noarch");
+		assertSame("# pkg = a-b");
+		assertSame("# name = ");
+		assertSame("# name = foo bar");
+		assertSame("# names = foo");
+		assertSame("# NAME = foo");
+		assertSame("## name = foo");
+		assertSame("# name == foo");
+		assertSame("# version = 1");
+	}
+
+	@Test
+	public void templateLines() {
+		assertSame("structure template repository/foo;");
+		assertSame("  structure  template\trepository/foo-bar.x ; ");
+		assertSame("structuretemplaterepository/foo;");
+		assertSame("structure template repository/foo");
+		assertSame("structure template ;");
+		assertSame("structure template a;b;");
+		assertSame("unique template repository/foo;");
+		assertSame("structures template foo;");
+	}
+
+	@Test
+	public void namePropertyLines() {
+		assertSame("\"name\" = \"foo\";");
+		assertSame("'name'='foo';");
+		assertSame(" \"name\" = 'foo-1.x' ; ");
+		assertSame("\"name\" = \"foo bar\";");
+		assertSame("\"name\" = \"\";");
+		assertSame("\"name\" = \"foo\"");
+		assertSame("\"owner\" = \"foo\";");
+		assertSame("\"name\" = foo;");
+	}
+
+	@Test
+	public void otherLines() {
+		assertSame("escape(\"foo-1.0-1-x86_64\"),dict(\"name\",\"foo\"),");
+		assertSame("include { 'foo' };");
+		assertSame("s");
+		assertSame("'");
+		assertSame("\"");
+	}
+
+	private static void assertSame(String line) {
+		int expectedType = TemplateLineParser.NONE;
+		String expectedValue = null;
+		for (int type = 1; type < PATTERNS.length; type++) {
+			Matcher m = PATTERNS[type].matcher(line);
+			if (m.matches()) {
+				expectedType = type;
+				expectedValue = m.group(1);
+			}
+		}
+
+		TemplateLineParser parser = new TemplateLineParser();
+		assertEquals("type of [" + line + "]", expectedType, parser.parse(line));
+		assertEquals("value of [" + line + "]", expectedValue, parser.getValue());
+	}
+
+}